@@ -0,0 +1,333 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client library for bots and bridges, without console. <br>
+ * Every session opened by a client shares its selector and its thread, a
+ * process can run thousands of them. The sessions use the same state machine
+ * as ClientChat, the incoming messages are given to a ChatListener called by
+ * the selector thread. <br>
+ * The methods can be called from any thread, they hand their work over to the
+ * selector thread and return a CompletableFuture completed by it.
+ * <pre>
+ * try (var client = new AsyncChatClient()) {
+ *     var session = client.login(new InetSocketAddress("localhost", 7777), "bot", listener).join();
+ *     session.send("Hello").join();
+ * }
+ * </pre>
+ */
+public final class AsyncChatClient implements Closeable {
+
+    private static final int BUFFER_SIZE = 10_000;
+    private static final Logger logger = Logger.getLogger(AsyncChatClient.class.getName());
+
+    private final Selector selector;
+    private final Thread thread;
+    // a slab per session, a client of a few sessions does not reserve the SLAB_SIZE of a server
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, BUFFER_SIZE);
+    // filled by any thread, emptied by the selector thread, failed once it stops
+    private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+    // set by the selector thread before it fails the tasks left
+    private volatile boolean stopped;
+    // a wakeup is already on its way, the next tasks do not need another one
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // contexts with frames left in their bufferIn
+    private final ArrayDeque<ClientChat.Context> pendingInput = new ArrayDeque<>();
+    // contexts which queued output during the current iteration, maybe several times
+    private final ArrayDeque<ClientChat.Context> dirty = new ArrayDeque<>();
+
+    /**
+     * Open the selector and start its thread, it is a daemon so a client
+     * left open does not keep the JVM alive
+     */
+    public AsyncChatClient() throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "chat-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connect to a server and log in (opcode 0)
+     *
+     * @param server   address of the server
+     * @param login    login of the session
+     * @param listener called by the selector thread with the events of the session
+     * @return a future completed by the session once the server accepted the
+     * login, it fails if the login is refused or the connection is lost before
+     */
+    public CompletableFuture<Session> login(InetSocketAddress server, String login, ChatListener listener) {
+        Objects.requireNonNull(server);
+        Objects.requireNonNull(login);
+        Objects.requireNonNull(listener);
+        var future = new CompletableFuture<Session>();
+        execute(() -> {
+            SocketChannel sc = null;
+            try {
+                sc = SocketChannel.open();
+                sc.configureBlocking(false);
+                var key = sc.register(selector, SelectionKey.OP_CONNECT);
+                var session = new Session(login);
+                session.context = new ClientChat.Context(key, pool, session.new LoginListener(listener, future));
+                key.attach(session.context);
+                sc.connect(server);
+                session.context.queueMessage(new PacketString(0, login));
+                dirty.add(session.context);
+            } catch (IOException | UnresolvedAddressException e) {
+                if (sc != null) {
+                    try {
+                        sc.close();
+                    } catch (IOException ignored) {
+                        // ignore exception
+                    }
+                }
+                future.completeExceptionally(e);
+            }
+        }, future);
+        return future;
+    }
+
+    /**
+     * Close every session and stop the selector thread
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand an action over to the selector thread
+     *
+     * @param future future of the action, failed if the client is closed
+     *               before the action runs, may be null
+     */
+    private void execute(Runnable action, CompletableFuture<?> future) {
+        var task = new Task(action, future);
+        tasks.add(task);
+        // the selector thread fails the tasks it finds once stopped, the others are failed here
+        if (stopped && tasks.remove(task)) {
+            task.fail();
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private record Task(Runnable action, CompletableFuture<?> future) {
+        void fail() {
+            if (future != null) {
+                future.completeExceptionally(new ClosedChannelException());
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.interrupted()) {
+                // frames already received must not wait for a new readable event
+                if (pendingInput.isEmpty()) {
+                    selector.select(this::treatKey);
+                } else {
+                    selector.selectNow(this::treatKey);
+                }
+                processTasks();
+                resumeInput();
+                flushDirty();
+            }
+        } catch (IOException e) {
+            logger.severe("Selector failed : " + e);
+        } finally {
+            for (var key : selector.keys()) {
+                ((ClientChat.Context) key.attachment()).silentlyClose();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            stopped = true;
+            Task task;
+            while ((task = tasks.poll()) != null) {
+                task.fail();
+            }
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        var context = (ClientChat.Context) key.attachment();
+        var pending = context.hasPendingIn();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                context.doConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+                context.doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                context.doRead();
+            }
+        } catch (IOException e) {
+            context.silentlyClose();
+            return;
+        }
+        if (!pending && context.hasPendingIn()) {
+            pendingInput.add(context);
+        }
+    }
+
+    private void processTasks() {
+        // cleared before draining, a task added after the last poll wakes the selector again
+        wakeupPending.set(false);
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            task.action().run();
+        }
+    }
+
+    private void resumeInput() {
+        for (int i = pendingInput.size(); i > 0; i--) {
+            var context = pendingInput.poll();
+            context.resumeIn();
+            if (context.hasPendingIn()) {
+                pendingInput.add(context);
+            }
+        }
+    }
+
+    private void flushDirty() {
+        ClientChat.Context context;
+        while ((context = dirty.poll()) != null) {
+            try {
+                context.flush();
+            } catch (IOException e) {
+                context.silentlyClose();
+            }
+        }
+    }
+
+
+    // #################### SESSION #################### //
+
+    /**
+     * A connection logged in to a server
+     */
+    public final class Session {
+        private final String login;
+        // set by the selector thread before the session is published by the login future
+        private ClientChat.Context context;
+
+        private Session(String login) {
+            this.login = login;
+        }
+
+        public String login() {
+            return login;
+        }
+
+        /**
+         * @return name of the server the session is logged in to
+         */
+        public String server() {
+            return context.nameServer();
+        }
+
+        /**
+         * Send a public message (opcode 4)
+         *
+         * @param message text of the message
+         * @return a future completed once the message is entirely written to the
+         * socket, it fails if the connection is closed before
+         */
+        public CompletableFuture<Void> send(String message) {
+            Objects.requireNonNull(message);
+            var future = new CompletableFuture<Void>();
+            var packet = new PacketString(4, List.of(context.nameServer(), login, message));
+            execute(() -> {
+                context.queueMessage(packet, future);
+                dirty.add(context);
+            }, future);
+            return future;
+        }
+
+        /**
+         * Close the connection, the messages not written yet are lost
+         */
+        public void close() {
+            execute(context::silentlyClose, null);
+        }
+
+        /**
+         * Completes the login future with the first event of the connection
+         * and passes every event on to the listener of the session
+         */
+        private class LoginListener implements ChatListener {
+            private final ChatListener listener;
+            private final CompletableFuture<Session> loggedIn;
+
+            private LoginListener(ChatListener listener, CompletableFuture<Session> loggedIn) {
+                this.listener = listener;
+                this.loggedIn = loggedIn;
+            }
+
+            @Override
+            public void onMessage(String server, String login, String message) {
+                call(() -> listener.onMessage(server, login, message));
+            }
+
+            @Override
+            public void onLogin(String server) {
+                loggedIn.complete(Session.this);
+                call(() -> listener.onLogin(server));
+            }
+
+            @Override
+            public void onRefused() {
+                loggedIn.completeExceptionally(new IOException("login " + login + " refused"));
+                call(listener::onRefused);
+            }
+
+            @Override
+            public void onClose() {
+                loggedIn.completeExceptionally(new ClosedChannelException());
+                call(listener::onClose);
+            }
+
+            /**
+             * The listener runs on the selector thread, what it throws must not
+             * stop the thread and the other sessions with it
+             */
+            private void call(Runnable callback) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Listener of " + login + " failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of a fixed size, sliced out of large off-heap slabs. <br>
+ * Contexts borrow their buffers when they are created and give them back when
+ * they close, so connections produce no garbage and socket reads and writes
+ * need no extra copy to native memory. <br>
+ * A pool is not thread-safe, it belongs to the single thread running a selector,
+ * only the counters can be read from other threads.
+ */
+final class BufferPool {
+
+    static final int SLAB_SIZE = Integer.getInteger("chatfusion.slabSize", 1 << 20);
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private volatile int inUse;
+    private volatile int slabs;
+
+    BufferPool(int bufferSize) {
+        this(bufferSize, SLAB_SIZE);
+    }
+
+    BufferPool(int bufferSize, int slabSize) {
+        if (bufferSize <= 0 || slabSize < bufferSize) {
+            throw new IllegalArgumentException("slab of " + slabSize + " bytes can't hold buffers of " + bufferSize + " bytes");
+        }
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = slabSize / bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of bufferSize bytes, a new slab is allocated if the pool is empty
+     */
+    ByteBuffer borrow() {
+        if (free.isEmpty()) {
+            grow();
+        }
+        inUse++;
+        return free.pop();
+    }
+
+    /**
+     * Give back a buffer obtained with borrow, it must not be used afterwards
+     *
+     * @param buffer ByteBuffer
+     */
+    void release(ByteBuffer buffer) {
+        free.push(buffer.clear());
+        inUse--;
+    }
+
+    private void grow() {
+        var slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            free.push(slab.slice(i * bufferSize, bufferSize));
+        }
+        slabs++;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers currently borrowed
+     */
+    int inUse() {
+        return inUse;
+    }
+
+    /**
+     * @return number of buffers the slabs allocated so far can hold
+     */
+    int capacity() {
+        return slabs * buffersPerSlab;
+    }
+
+    @Override
+    public String toString() {
+        return inUse() + "/" + capacity() + " buffers of " + bufferSize + " bytes in use";
+    }
+}
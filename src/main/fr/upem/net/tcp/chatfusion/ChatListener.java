@@ -0,0 +1,38 @@
+package fr.upem.net.tcp.chatfusion;
+
+/**
+ * Events of a client connection, called by the thread running its selector. <br>
+ * The calls must return quickly, every connection sharing the selector waits
+ * for them.
+ */
+public interface ChatListener {
+
+    /**
+     * A public message (opcode 4) was received
+     *
+     * @param server  name of the server the sender is connected to
+     * @param login   login of the sender
+     * @param message text of the message
+     */
+    void onMessage(String server, String login, String message);
+
+    /**
+     * The server accepted the login (opcode 2)
+     *
+     * @param server name of the server
+     */
+    default void onLogin(String server) {
+    }
+
+    /**
+     * The server refused the login (opcode 3), the connection is closed next
+     */
+    default void onRefused() {
+    }
+
+    /**
+     * The connection is closed, by the server or after an error
+     */
+    default void onClose() {
+    }
+}
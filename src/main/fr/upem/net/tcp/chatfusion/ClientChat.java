@@ -1,5 +1,6 @@
 package fr.upem.net.tcp.chatfusion;
 
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
 import fr.upem.net.tcp.chatfusion.Packet.Packet;
 import fr.upem.net.tcp.chatfusion.Packet.PacketString;
 import fr.upem.net.tcp.chatfusion.Reader.PacketReader;
@@ -10,17 +11,25 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 public class ClientChat {
 
     static private final int BUFFER_SIZE = 10_000;
+    // frames handled before going back to the selector
+    static private final int FRAMES_PER_READ = 64;
+    // output is written at the end of the iteration that queued it, without waiting for OP_WRITE
+    static private final boolean DIRECT_WRITE = Boolean.parseBoolean(System.getProperty("chatfusion.directWrite", "true"));
     static private final Logger logger = Logger.getLogger(ClientChat.class.getName());
     private final SocketChannel sc;
     private final Selector selector;
@@ -28,9 +37,13 @@ public class ClientChat {
     private final String login;
     private final Thread console;
     private Context uniqueContext;
-    private final Object lock = new Object();
-    private final int CAPACITY = 10;
-    private final ArrayDeque<Packet> queueOut = new ArrayDeque<>(CAPACITY);
+    // filled by the console thread, emptied by the selector thread
+    private final ConcurrentLinkedQueue<Packet> queueOut = new ConcurrentLinkedQueue<>();
+    // a wakeup is already on its way, the next lines do not need another one
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // a single connection, its slab holds only its buffer instead of the SLAB_SIZE of a server
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, BUFFER_SIZE);
+    private final ConsoleRenderer renderer = new ConsoleRenderer();
 
     public ClientChat(String login, InetSocketAddress serverAddress) throws IOException {
         this.serverAddress = serverAddress;
@@ -44,66 +57,69 @@ public class ClientChat {
      * Thread to read command on terminal
      */
     private void consoleRun() {
-        try {
-            try (var scanner = new Scanner(System.in)) {
-                while (scanner.hasNextLine()) {
-                    var msg = scanner.nextLine();
-                    sendCommand(msg);
-                }
+        try (var scanner = new Scanner(System.in)) {
+            while (scanner.hasNextLine()) {
+                var msg = scanner.nextLine();
+                sendCommand(msg);
             }
-            logger.info("Console thread stopping");
-        } catch (InterruptedException e) {
-            logger.info("Console thread has been interrupted");
         }
+        logger.info("Console thread stopping");
     }
 
     /**
-     * Send instructions to the selector via a BlockingQueue and wake it up
+     * Send instructions to the selector via a non-blocking queue, the selector
+     * is woken up only if no wakeup is pending already
      */
-    private void sendCommand(String msg) throws InterruptedException {
-        synchronized (console) {
-            if ("LOGIN".equals(msg)) {
-                while (queueOut.size() == CAPACITY) lock.wait();
-                var packet = new PacketString(0, login);
-                queueOut.add(packet);
-                selector.wakeup();
-            } else {
-                if (uniqueContext.nameServer != null) {
-                    while (queueOut.size() == CAPACITY) lock.wait();
-                    var packet = new PacketString(4, List.of(uniqueContext.nameServer, login, msg));
-                    queueOut.add(packet);
-                    selector.wakeup();
-                } else {
-                    logger.info("Client is not connected yet to a server");
-                }
+    private void sendCommand(String msg) {
+        Packet packet;
+        if ("LOGIN".equals(msg)) {
+            packet = new PacketString(0, login);
+        } else {
+            var nameServer = uniqueContext.nameServer;
+            if (nameServer == null) {
+                logger.info("Client is not connected yet to a server");
+                return;
             }
+            packet = new PacketString(4, List.of(nameServer, login, msg));
+        }
+        queueOut.add(packet);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
         }
     }
 
     /**
-     * Processes the command from the BlockingQueue
+     * Processes every command in the queue, they are written together by flush
      */
     private void processCommands() {
-        synchronized (lock) {
-            if (queueOut.isEmpty()) return;
-            var packet = (Packet) queueOut.pop();
+        // cleared before draining, a command added after the last poll wakes the selector again
+        wakeupPending.set(false);
+        Packet packet;
+        while ((packet = queueOut.poll()) != null) {
             uniqueContext.queueMessage(packet);
-            lock.notify();
         }
     }
 
     public void launch() throws IOException {
         sc.configureBlocking(false);
         var key = sc.register(selector, SelectionKey.OP_CONNECT);
-        uniqueContext = new Context(key);
+        uniqueContext = new Context(key, pool, new ConsoleListener());
         key.attach(uniqueContext);
         sc.connect(serverAddress);
         console.start();
 
         while (!Thread.interrupted()) {
             try {
-                selector.select(this::treatKey);
+                // frames already received must not wait for a new readable event
+                if (uniqueContext.pendingIn) {
+                    selector.selectNow(this::treatKey);
+                    uniqueContext.resumeIn();
+                } else {
+                    selector.select(this::treatKey);
+                }
                 processCommands();
+                uniqueContext.flush();
+                renderer.flush();
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
@@ -148,32 +164,91 @@ public class ClientChat {
     }
 
 
+    /**
+     * Messages printed on the console by the renderer, the other events are logged
+     */
+    private class ConsoleListener implements ChatListener {
+        @Override
+        public void onMessage(String server, String login, String message) {
+            renderer.onMessage(server, login, message);
+        }
+
+        @Override
+        public void onLogin(String server) {
+            logger.info("Client successfully connected to server");
+        }
+
+        @Override
+        public void onRefused() {
+            logger.info("Client couldn't connect to the server");
+        }
+    }
+
+
     // #################### CONTEXT #################### //
 
-    private static class Context {
+    /**
+     * State machine of a connection to a server, shared with AsyncChatClient.
+     * It is driven by the single thread running its selector.
+     */
+    static class Context {
         private final SelectionKey key;
         private final SocketChannel sc;
-        private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer bufferIn;
+        private final BufferPool pool;
+        private final ChatListener listener;
         private final PacketReader packetReader = new PacketReader();
-        private final ArrayDeque<Packet> queue = new ArrayDeque<>();
+        private final FrameQueue queue = new FrameQueue();
+        // futures of the frames queued, completed once their last byte is written
+        private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        private long queuedBytes;
+        private long writtenBytes;
         private boolean closed = false;
+        private boolean pendingIn = false;
+        // queued output not looked at yet by flush
+        private boolean dirty = false;
         private Packet packet;
-        private String nameServer;
+        // read by the console thread
+        private volatile String nameServer;
+
+        private record PendingWrite(long end, CompletableFuture<Void> future) {
+        }
 
-        private Context(SelectionKey key) {
+        Context(SelectionKey key, BufferPool pool, ChatListener listener) {
             this.key = key;
             this.sc = (SocketChannel) key.channel();
+            this.pool = pool;
+            this.listener = listener;
+            this.bufferIn = pool.borrow();
+        }
+
+        /**
+         * @return name of the server once the login is accepted, null before
+         */
+        String nameServer() {
+            return nameServer;
         }
 
         /**
-         * Process the content of bufferIn
+         * @return true if frames are left in bufferIn for resumeIn
+         */
+        boolean hasPendingIn() {
+            return pendingIn;
+        }
+
+        /**
+         * Process the content of bufferIn, handling every complete frame up to
+         * FRAMES_PER_READ frames, the remaining ones are handled by resumeIn
          * <p>
          * The convention is that bufferIn is in write-mode before the call to process
          * and after the call
          */
         private void processIn() {
-            for (; ; ) {
+            for (int frames = 0; ; frames++) {
+                if (frames == FRAMES_PER_READ) {
+                    pendingIn = bufferIn.position() != 0;
+                    return;
+                }
                 ProcessStatus status = packetReader.process(bufferIn);
                 switch (status) {
                     case DONE -> {
@@ -181,27 +256,20 @@ public class ClientChat {
                         switch (packet.opCodeGet()) {
                             case 2 -> {
                                 nameServer = (String) packet.components().get(0);
-                                packetReader.reset();
-                                logger.info("Client successfully connected to server");
-                                return;
+                                listener.onLogin(nameServer);
                             }
                             case 3 -> {
-                                logger.info("Client couldn't connect to the server");
+                                listener.onRefused();
                                 packetReader.reset();
                                 silentlyClose();
                                 return;
                             }
                             // public message
-                            case 4 -> {
-                                publicMessage();
-                                packetReader.reset();
-                                return;
-                            }
+                            case 4 -> publicMessage();
                         }
                         packetReader.reset();
                     }
                     case REFILL -> {
-                        logger.info("REFILL");
                         return;
                     }
                     case ERROR -> {
@@ -214,100 +282,161 @@ public class ClientChat {
         }
 
         private void publicMessage() {
-            var nameServer = packet.components().get(0);
-            String login = (String) packet.components().get(1);
-            var message = packet.components().get(2);
+            var components = packet.components();
+            listener.onMessage((String) components.get(0), (String) components.get(1), (String) components.get(2));
+        }
 
-            System.out.println(login + "[" + nameServer + "]: " + message);
+        /**
+         * Add a message to the outbound queue as a ready frame, it is written by
+         * flush at the end of the iteration
+         */
+        void queueMessage(Packet packet) {
+            var frame = Envelope.encode(packet);
+            queuedBytes += frame.remaining();
+            queue.add(frame);
+            dirty = true;
         }
 
         /**
-         * Add a message to the message queue, tries to fill bufferOut and updateInterestOps
+         * Same as queueMessage, the future is completed once the frame is
+         * entirely written to the socket, or fails if the connection closes before
          */
-        private void queueMessage(Packet packet) {
-            queue.add(packet);
-            processOut();
-            updateInterestOps();
+        void queueMessage(Packet packet, CompletableFuture<Void> future) {
+            if (!sc.isOpen()) {
+                future.completeExceptionally(new ClosedChannelException());
+                return;
+            }
+            queueMessage(packet);
+            pendingWrites.add(new PendingWrite(queuedBytes, future));
+        }
+
+        /**
+         * Write as much of the outbound queue as possible and complete the
+         * futures of the frames written
+         */
+        private void write() throws IOException {
+            writtenBytes += queue.flush(sc);
+            while (!pendingWrites.isEmpty() && pendingWrites.peek().end() <= writtenBytes) {
+                pendingWrites.poll().future().complete(null);
+            }
         }
 
         /**
-         * Try to fill bufferOut from the message queue
+         * Write what was queued during the iteration. The write is attempted
+         * directly unless the socket was already full, then OP_WRITE takes over
+         * for what is left.
+         *
+         * @throws IOException Is thrown if the SocketChannel <b>sc</b> is closed while writing to it
          */
-        private void processOut() {
-            var previewMsg = queue.peek();
-            while (!queue.isEmpty() && bufferOut.remaining() >= previewMsg.size()) {// take the value without removing it from the queue
-                var fullMsg = queue.poll();
-                if (fullMsg == null) return;
-                bufferOut.put(fullMsg.generateByteBuffer().flip());
+        void flush() throws IOException {
+            // nothing can be written before doConnect, the output waits until then
+            if (!dirty || !sc.isConnected()) {
+                return;
             }
+            dirty = false;
+            if (!key.isValid()) {
+                return;
+            }
+            if (DIRECT_WRITE && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                write();
+            }
+            updateInterestOps();
         }
 
         /**
          * Update the interestOps of the key looking only at values of the boolean
-         * closed and of both ByteBuffers.
+         * closed, of bufferIn and of the outbound queue.
          * <p>
-         * The convention is that both buffers are in write-mode before the call to
+         * The convention is that bufferIn is in write-mode before the call to
          * updateInterestOps and after the call. Also, it is assumed that process has
          * been called just before updateInterestOps.
          */
         private void updateInterestOps() {
+            if (!key.isValid()) {
+                return;
+            }
             int ops = 0;
 
             if (!closed && bufferIn.hasRemaining())
                 ops |= SelectionKey.OP_READ;
 
-            if (bufferOut.position() > 0)
+            // output queued during this iteration is left to flush
+            if (!queue.isEmpty() && !dirty)
                 ops |= SelectionKey.OP_WRITE;
 
-            if (ops == 0)
+            if (ops == 0 && !dirty)
                 silentlyClose();
             else
                 key.interestOps(ops);
         }
 
-        private void silentlyClose() {
+        void silentlyClose() {
+            if (!sc.isOpen()) {
+                return;
+            }
             try {
                 sc.close();
             } catch (IOException e) {
                 // ignore exception
             }
+            pool.release(bufferIn);
+            queue.clear();
+            PendingWrite pending;
+            while ((pending = pendingWrites.poll()) != null) {
+                pending.future().completeExceptionally(new ClosedChannelException());
+            }
+            listener.onClose();
         }
 
         /**
          * Performs the read action on sc
          * <p>
-         * The convention is that both buffers are in write-mode before the call to
+         * The convention is that bufferIn is in write-mode before the call to
          * doRead and after the call
          *
          * @throws IOException Is thrown if the SocketChannel <b>sc</b> is closed while reading from it
          */
-        private void doRead() throws IOException {
+        void doRead() throws IOException {
             if (sc.read(bufferIn) == -1)
                 closed = true;
             processIn();
+            updateInterestOps();
         }
 
         /**
-         * Performs the write action on sc
-         * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * doWrite and after the call
+         * Go on with the frames left in bufferIn by a previous processIn
+         */
+        void resumeIn() {
+            pendingIn = false;
+            if (!sc.isOpen()) {
+                return;
+            }
+            processIn();
+            updateInterestOps();
+        }
+
+        /**
+         * Performs the write action on sc, flushing as many queued frames as
+         * possible with one gathering write
          *
          * @throws IOException Is thrown if the SocketChannel <b>sc</b> is closed while reading from it
          */
-        private void doWrite() throws IOException {
-            sc.write(bufferOut.flip());
-            bufferOut.compact();
-            processOut();
+        void doWrite() throws IOException {
+            write();
             updateInterestOps();
         }
 
-        public void doConnect() throws IOException {
+        void doConnect() throws IOException {
             if (!sc.finishConnect()) {
                 logger.warning("Bad thing happened");
                 return;
             }
-            updateInterestOps();
+            // output queued while connecting was left by flush
+            if (dirty) {
+                flush();
+            } else {
+                updateInterestOps();
+            }
         }
     }
 
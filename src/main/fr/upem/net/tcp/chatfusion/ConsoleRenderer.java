@@ -0,0 +1,97 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.io.PrintStream;
+
+/**
+ * Prints the messages received by ClientChat without slowing down its
+ * selector. <br>
+ * The selector thread appends the messages to a batch and hands it over once
+ * per iteration of its loop, a dedicated thread writes the batch with a single
+ * write. While the terminal is busy with a batch the next one grows, past
+ * maxLines its messages are only counted and printed as "N more messages",
+ * so a flood never fills the memory nor holds the connection back.
+ */
+final class ConsoleRenderer implements ChatListener {
+
+    static final int MAX_LINES = Integer.getInteger("chatfusion.render.lines", 1_000);
+
+    private final PrintStream out;
+    private final int maxLines;
+    private final Object lock = new Object();
+    private final Thread writer;
+    // guarded by lock
+    private StringBuilder pending = new StringBuilder();
+    private int pendingLines;
+    private long dropped;
+    // the selector thread added lines since the last flush
+    private boolean added;
+
+    ConsoleRenderer() {
+        this(System.out, MAX_LINES);
+    }
+
+    ConsoleRenderer(PrintStream out, int maxLines) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        this.out = out;
+        this.maxLines = maxLines;
+        this.writer = new Thread(this::writeRun, "console-renderer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void onMessage(String server, String login, String message) {
+        synchronized (lock) {
+            added = true;
+            if (pendingLines == maxLines) {
+                dropped++;
+                return;
+            }
+            pending.append(login).append('[').append(server).append("]: ").append(message).append('\n');
+            pendingLines++;
+        }
+    }
+
+    /**
+     * Hand the messages of the iteration over to the writer thread, called by
+     * the selector thread at the end of each iteration
+     */
+    void flush() {
+        synchronized (lock) {
+            if (added) {
+                added = false;
+                lock.notify();
+            }
+        }
+    }
+
+    private void writeRun() {
+        var batch = new StringBuilder();
+        try {
+            while (true) {
+                long more;
+                synchronized (lock) {
+                    while (pendingLines == 0 && dropped == 0) {
+                        lock.wait();
+                    }
+                    var full = pending;
+                    pending = batch;
+                    batch = full;
+                    more = dropped;
+                    pendingLines = 0;
+                    dropped = 0;
+                }
+                if (more != 0) {
+                    batch.append("... ").append(more).append(" more messages\n");
+                }
+                out.append(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // the client is stopping
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Outbound queue of a connection holding frames ready to be sent. <br>
+ * Frames are kept in read-mode and several of them are written with a single
+ * gathering write, so there is no copy into an intermediate buffer and no
+ * limit on the size of a frame. <br>
+ * With an OutputBudget the queue is bounded : the policy of the budget is
+ * applied when a frame would cross the high watermark or the budget of the
+ * server. A frame partially written is never dropped, it would corrupt the
+ * stream. <br>
+ * A queue of a link between servers drops nothing as long as its SpillFile
+ * has room : once spillOver is called, frames past SPILL_THRESHOLD bytes go to
+ * the SpillFile, and every frame after them too until it is drained, so the
+ * order is kept. When the file is full the policy of the budget applies
+ * again, DISCONNECT closes the link and the other policies drop the new
+ * frames, the oldest ones being in the file.
+ */
+final class FrameQueue {
+
+    static final long SPILL_THRESHOLD = Long.getLong("chatfusion.spill.threshold", 1L << 18);
+    private static final int MAX_GATHER = 64;
+    // the array given to write(ByteBuffer[]) is only needed during flush, one per thread is enough
+    private static final ThreadLocal<ByteBuffer[]> GATHER = ThreadLocal.withInitial(() -> new ByteBuffer[MAX_GATHER]);
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final OutputBudget budget;
+    private SpillFile spill;
+    private long bytes;
+    // DROP_NEW drops everything until the queue is back to the low watermark,
+    // a link drops everything until its SpillFile has room again
+    private boolean congested;
+
+    /**
+     * Unbounded queue
+     */
+    FrameQueue() {
+        this(null);
+    }
+
+    /**
+     * @param budget limits shared by the connections of a server, null for an unbounded queue
+     */
+    FrameQueue(OutputBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * From now on, frames past SPILL_THRESHOLD bytes go to the SpillFile instead
+     * of applying the policy of the budget, until the file is full
+     */
+    void spillOver(SpillFile spill) {
+        this.spill = spill;
+        congested = false;
+    }
+
+    /**
+     * @return true if spillOver was called
+     */
+    boolean spills() {
+        return spill != null;
+    }
+
+    /**
+     * @param frame ByteBuffer in read-mode, it must not be modified afterwards
+     * @return false if the connection must be closed because of the DISCONNECT
+     * policy, or because its SpillFile can't be written or is full without a budget
+     */
+    boolean add(ByteBuffer frame) {
+        var size = frame.remaining();
+        if (spill != null) {
+            return addOrSpill(frame, size);
+        }
+        if (budget == null) {
+            append(frame, size);
+            return true;
+        }
+        if (congested && bytes <= budget.lowWatermark()) {
+            congested = false;
+        }
+        if (!congested && fits(size)) {
+            append(frame, size);
+            return true;
+        }
+        switch (budget.policy()) {
+            case DROP_NEW -> {
+                // counted once until the queue drains, whatever the number of frames dropped meanwhile
+                if (congested) {
+                    budget.dropped(OutputBudget.Policy.DROP_NEW, 1);
+                } else {
+                    congested = true;
+                    budget.fired(OutputBudget.Policy.DROP_NEW, 1);
+                }
+            }
+            case DROP_OLDEST -> {
+                var dropped = trim(budget.lowWatermark() - size);
+                if (fits(size)) {
+                    append(frame, size);
+                } else {
+                    // too large for the room left even after trimming
+                    dropped++;
+                }
+                budget.fired(OutputBudget.Policy.DROP_OLDEST, dropped);
+            }
+            case DISCONNECT -> {
+                budget.fired(OutputBudget.Policy.DISCONNECT, frames.size() + 1);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean addOrSpill(ByteBuffer frame, int size) {
+        if (spill.isEmpty() && bytes + size <= SPILL_THRESHOLD && (budget == null || budget.reserve(size))) {
+            congested = false;
+            append(frame, size);
+            return true;
+        }
+        if (!spill.fits(size)) {
+            return spillFull();
+        }
+        congested = false;
+        try {
+            spill.append(frame.duplicate());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Apply the policy of the budget to a frame the SpillFile has no room for
+     *
+     * @return false if the connection must be closed
+     */
+    private boolean spillFull() {
+        if (budget == null) {
+            return false;
+        }
+        var policy = budget.policy();
+        if (policy == OutputBudget.Policy.DISCONNECT) {
+            budget.fired(policy, frames.size() + 1);
+            return false;
+        }
+        if (congested) {
+            budget.dropped(policy, 1);
+        } else {
+            congested = true;
+            budget.fired(policy, 1);
+        }
+        return true;
+    }
+
+    private boolean fits(int size) {
+        return bytes + size <= budget.highWatermark() && budget.reserve(size);
+    }
+
+    private void append(ByteBuffer frame, int size) {
+        frames.add(frame);
+        bytes += size;
+    }
+
+    /**
+     * Drop the oldest frames not yet started until at most target bytes are left
+     *
+     * @return number of frames dropped
+     */
+    private int trim(long target) {
+        int dropped = 0;
+        var iterator = frames.iterator();
+        while (bytes > target && iterator.hasNext()) {
+            var frame = iterator.next();
+            if (frame.position() != 0) {
+                continue;
+            }
+            iterator.remove();
+            bytes -= frame.remaining();
+            budget.release(frame.remaining());
+            dropped++;
+        }
+        return dropped;
+    }
+
+    boolean isEmpty() {
+        return frames.isEmpty() && (spill == null || spill.isEmpty());
+    }
+
+    /**
+     * @return number of frames waiting to be sent
+     */
+    int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return number of bytes waiting in memory to be sent
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of bytes waiting in the SpillFile
+     */
+    long spilled() {
+        return spill == null ? 0 : spill.bytes();
+    }
+
+    /**
+     * Write as many frames as the channel accepts, up to MAX_GATHER frames per
+     * system call, then the content of the SpillFile
+     *
+     * @param channel GatheringByteChannel in non-blocking mode
+     * @return number of bytes written
+     * @throws IOException if the channel is closed
+     */
+    long flush(GatheringByteChannel channel) throws IOException {
+        var gather = GATHER.get();
+        long total = 0;
+        while (!frames.isEmpty()) {
+            int count = 0;
+            for (var frame : frames) {
+                if (count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = frame;
+            }
+            long written;
+            try {
+                written = channel.write(gather, 0, count);
+            } finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+            total += written;
+            bytes -= written;
+            if (budget != null) {
+                budget.release(written);
+            }
+            while (!frames.isEmpty() && !frames.peek().hasRemaining()) {
+                frames.poll();
+            }
+            // a frame partially written means the socket buffer is full
+            if (written == 0 || (!frames.isEmpty() && frames.peek().position() != 0)) {
+                return total;
+            }
+        }
+        if (spill != null && !spill.isEmpty()) {
+            total += spill.writeTo(channel);
+        }
+        return total;
+    }
+
+    void clear() {
+        frames.clear();
+        if (budget != null) {
+            budget.release(bytes);
+        }
+        bytes = 0;
+        if (spill != null) {
+            spill.clear();
+        }
+    }
+}
@@ -46,25 +46,4 @@ class Helpers {
             return "???";
         }
     }
-
-    static void printSelectedKey(SelectionKey key) {
-        var channel = key.channel();
-        if (channel instanceof ServerSocketChannel) {
-            System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-        } else {
-            var sc = (SocketChannel) channel;
-            System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-        }
-    }
-
-    private static String possibleActionsToString(SelectionKey key) {
-        if (!key.isValid()) {
-            return "CANCELLED";
-        }
-        var joiner = new StringJoiner(" and ");
-        if (key.isAcceptable()) joiner.add("ACCEPT");
-        if (key.isReadable()) joiner.add("READ");
-        if (key.isWritable()) joiner.add("WRITE");
-        return joiner.toString();
-    }
 }
\ No newline at end of file
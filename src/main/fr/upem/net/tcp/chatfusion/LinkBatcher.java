@@ -0,0 +1,65 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.Packet;
+import fr.upem.net.tcp.chatfusion.Packet.PacketBatch;
+
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Public messages waiting to be sent on a link to another server, packed in
+ * one PacketBatch (opcode 16) per server of their senders. <br>
+ * The owner of the link drains the batches when it flushes its output, at the
+ * end of each iteration of its loop, or as soon as they reach BATCH_SIZE bytes.
+ * The messages of a server keep their order, only those of different servers
+ * may be reordered. <br>
+ * Not thread-safe, it is used by the thread writing to the link.
+ */
+final class LinkBatcher {
+
+    static final boolean ENABLED = Boolean.getBoolean("chatfusion.batch");
+    static final int BATCH_SIZE = Integer.getInteger("chatfusion.batch.size", 16 * 1_024);
+
+    private final LinkedHashMap<String, PacketBatch.Builder> builders = new LinkedHashMap<>();
+    private final int batchSize;
+    private int bytes;
+
+    LinkBatcher() {
+        this(BATCH_SIZE);
+    }
+
+    LinkBatcher(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param message public message (opcode 4)
+     * @return true if the batches reached the size at which they must be drained
+     */
+    boolean add(Packet message) {
+        var server = (String) message.components().get(0);
+        var builder = builders.computeIfAbsent(server, PacketBatch.Builder::new);
+        if (!builder.isEmpty()) {
+            bytes -= builder.size();
+        }
+        builder.add(message);
+        bytes += builder.size();
+        return bytes >= batchSize;
+    }
+
+    boolean isEmpty() {
+        return bytes == 0;
+    }
+
+    /**
+     * Give every pending batch to the consumer and start over
+     */
+    void drainTo(Consumer<PacketBatch> consumer) {
+        for (var builder : builders.values()) {
+            if (!builder.isEmpty()) {
+                consumer.accept(builder.build());
+            }
+        }
+        bytes = 0;
+    }
+}
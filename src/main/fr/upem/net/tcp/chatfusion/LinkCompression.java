@@ -0,0 +1,155 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of a link between servers, for the whole life of the
+ * link so that the dictionary built by the previous messages keeps serving
+ * the next ones. <br>
+ * It is negotiated by the fusion handshake : a server with compression on
+ * puts DEFLATE in the capabilities of its PacketFusionInit (opcode 8), the
+ * other server answers with DEFLATE in its opcode 9 if it has compression on
+ * too. Everything sent after these two frames is compressed. The capabilities
+ * need the Envelope framing, so compression stays off without it. <br>
+ * The frames queued during an iteration are compressed together and ended by
+ * a single SYNC_FLUSH when the output is flushed, so the peer can read them
+ * without waiting for the next ones. <br>
+ * Output and input are used by different threads, the writer of the link and
+ * its reader, the counters can be read from any thread. The native memory of
+ * the Deflater and the Inflater is freed once the link is unreachable, ending
+ * them on close could race with its reader.
+ */
+final class LinkCompression {
+
+    static final int DEFLATE = 1;
+    static final boolean ENABLED = Boolean.getBoolean("chatfusion.compress") && Envelope.ENABLED;
+    private static final int LEVEL = Integer.getInteger("chatfusion.compress.level", Deflater.DEFAULT_COMPRESSION);
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final Inflater inflater = new Inflater(true);
+    private final Metrics metrics;
+    // compressed bytes not flushed yet, in write-mode
+    private ByteBuffer output = ByteBuffer.allocate(1_024);
+    private boolean written;
+    private final LongAdder plainOut = new LongAdder();
+    private final LongAdder deflatedOut = new LongAdder();
+    private final LongAdder deflatedIn = new LongAdder();
+    private final LongAdder plainIn = new LongAdder();
+    private final LongAdder time = new LongAdder();
+
+    /**
+     * @param metrics metrics of the server, the link adds its bytes and time to them
+     */
+    LinkCompression(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the capabilities a server puts in its PacketFusionInit
+     */
+    static int capabilities() {
+        return ENABLED ? DEFLATE : 0;
+    }
+
+    /**
+     * Compress a frame, the result is only available after the next flush
+     *
+     * @param frame ByteBuffer in read-mode, it is left untouched
+     */
+    void deflate(ByteBuffer frame) {
+        var start = System.nanoTime();
+        var size = frame.remaining();
+        deflater.setInput(frame.duplicate());
+        while (!deflater.needsInput()) {
+            room();
+            deflater.deflate(output, Deflater.NO_FLUSH);
+        }
+        written = true;
+        plainOut.add(size);
+        metrics.uncompressedBytes.add(size);
+        record(start);
+    }
+
+    /**
+     * @return true if frames were compressed since the last flush
+     */
+    boolean hasOutput() {
+        return written;
+    }
+
+    /**
+     * Compressed bytes of the frames given since the last flush
+     *
+     * @return ByteBuffer in read-mode
+     */
+    ByteBuffer flush() {
+        var start = System.nanoTime();
+        // with SYNC_FLUSH, deflate must be called again as long as it fills the output
+        do {
+            room();
+            deflater.deflate(output, Deflater.SYNC_FLUSH);
+        } while (!output.hasRemaining());
+        var chunk = ByteBuffer.allocate(output.position()).put(output.flip()).flip();
+        output.clear();
+        written = false;
+        deflatedOut.add(chunk.remaining());
+        metrics.compressedBytes.add(chunk.remaining());
+        record(start);
+        return chunk;
+    }
+
+    /**
+     * Decompress what it can of in to out. <br>
+     * The convention is that in and out are in write-mode before and after the call.
+     *
+     * @return true if bytes were consumed or produced
+     * @throws DataFormatException if in is not what the Deflater of the peer sent
+     */
+    boolean inflate(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+        if (!out.hasRemaining()) {
+            return false;
+        }
+        var start = System.nanoTime();
+        var produced = 0;
+        in.flip();
+        var available = in.remaining();
+        try {
+            inflater.setInput(in);
+            produced = inflater.inflate(out);
+        } finally {
+            available -= in.remaining();
+            in.compact();
+        }
+        deflatedIn.add(available);
+        plainIn.add(produced);
+        metrics.compressedBytes.add(available);
+        metrics.uncompressedBytes.add(produced);
+        record(start);
+        return available > 0 || produced > 0;
+    }
+
+    private void room() {
+        if (!output.hasRemaining()) {
+            output = ByteBuffer.allocate(output.capacity() * 2).put(output.flip());
+        }
+    }
+
+    private void record(long start) {
+        var elapsed = System.nanoTime() - start;
+        time.add(elapsed);
+        metrics.compressionTime.add(elapsed);
+    }
+
+    @Override
+    public String toString() {
+        return "deflate " + plainOut.sum() + " -> " + deflatedOut.sum() + " bytes (" + Metrics.ratio(deflatedOut.sum(), plainOut.sum())
+                + "), inflate " + deflatedIn.sum() + " -> " + plainIn.sum() + " bytes (" + Metrics.ratio(deflatedIn.sum(), plainIn.sum())
+                + "), " + time.sum() / 1_000_000 + " ms";
+    }
+}
@@ -0,0 +1,391 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import fr.upem.net.tcp.chatfusion.Packet.Packet;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+import fr.upem.net.tcp.chatfusion.Reader.PacketReader;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Headless clients loading one or several servers, without console. <br>
+ * Every session logs in (opcode 0) on one of the servers in a round-robin
+ * fashion, then the first sessions send public messages (opcode 4) at a fixed
+ * rate. A message carries the System.nanoTime of its sending, so that every
+ * session receiving it records the delivery latency. All the sessions share a
+ * single selector thread, the latency includes the time the generator takes
+ * to go through its selected keys. <br>
+ * One JSON object is printed per line : one per second of the run, then a
+ * summary, so that runs can be compared over time. <br>
+ * With the target embedded, the generator starts a server in its own JVM, with
+ * the engine given by chatfusion.engine, so that the engines can be compared.
+ * The heap growth per session then includes the cost of the server.
+ */
+public class LoadGenerator {
+
+    private static final int BUFFER_SIZE = 10_000;
+    private static final long REPORT_PERIOD = TimeUnit.SECONDS.toNanos(1);
+    private static final long LOGIN_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    private final Selector selector;
+    private final List<InetSocketAddress> servers;
+    private final int sessionCount;
+    private final int senderCount;
+    private final long sendPeriod;
+    private final long duration;
+    // engine of the embedded server, or external
+    private final String target;
+    // a slab per session, a run of a few sessions does not reserve the SLAB_SIZE of a server
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, BUFFER_SIZE);
+    private final ArrayList<Session> sessions = new ArrayList<>();
+    // sessions which queued output during the current iteration
+    private final ArrayDeque<Session> dirty = new ArrayDeque<>();
+    // latencies in microseconds, since the start and since the last report
+    private final Histogram latencies = new Histogram();
+    private final Histogram intervalLatencies = new Histogram();
+    private int logged;
+    private int refused;
+    private int closed;
+    private long sent;
+    private long received;
+    private long intervalSent;
+    private long intervalReceived;
+    private long heapPerSession;
+
+    /**
+     * @param sessionCount number of clients
+     * @param senderCount  number of clients sending messages, all of them receive
+     * @param rate         messages per second of each sender
+     * @param seconds      duration of the run once every session is logged
+     * @param servers      servers the sessions are spread on
+     * @param target       printed in the summary to tell the runs apart
+     */
+    public LoadGenerator(int sessionCount, int senderCount, double rate, int seconds, List<InetSocketAddress> servers, String target) throws IOException {
+        if (sessionCount < 1 || senderCount < 0 || senderCount > sessionCount || rate <= 0 || seconds < 1 || servers.isEmpty()) {
+            throw new IllegalArgumentException("Invalid load");
+        }
+        this.selector = Selector.open();
+        this.sessionCount = sessionCount;
+        this.senderCount = senderCount;
+        this.sendPeriod = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.duration = TimeUnit.SECONDS.toNanos(seconds);
+        this.servers = List.copyOf(servers);
+        this.target = target;
+    }
+
+    public void launch() throws IOException, InterruptedException {
+        var heapBefore = usedHeap();
+        for (int i = 0; i < sessionCount; i++) {
+            var sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            var key = sc.register(selector, SelectionKey.OP_CONNECT);
+            var session = new Session(key, "load" + i);
+            key.attach(session);
+            sessions.add(session);
+            sc.connect(servers.get(i % servers.size()));
+        }
+
+        var loginDeadline = System.nanoTime() + LOGIN_TIMEOUT;
+        while (logged + refused + closed < sessionCount && System.nanoTime() < loginDeadline) {
+            selector.select(this::treatKey, 100);
+            flushDirty();
+        }
+        if (logged == 0) {
+            logger.severe("No session could log in");
+            return;
+        }
+        heapPerSession = (usedHeap() - heapBefore) / sessionCount;
+
+        var start = System.nanoTime();
+        var end = start + duration;
+        var nextReport = start + REPORT_PERIOD;
+        for (int i = 0; i < senderCount; i++) {
+            // spread the first messages of the senders over a period
+            sessions.get(i).nextSend = start + sendPeriod * i / senderCount;
+        }
+        var now = start;
+        while (now < end) {
+            selector.select(this::treatKey, 1);
+            now = System.nanoTime();
+            for (int i = 0; i < senderCount; i++) {
+                sessions.get(i).sendDue(now);
+            }
+            flushDirty();
+            if (now >= nextReport) {
+                report((now - start) / 1e9);
+                nextReport += REPORT_PERIOD;
+            }
+        }
+        summary((now - start) / 1e9);
+        for (var session : sessions) {
+            session.silentlyClose();
+        }
+        selector.close();
+    }
+
+    private void treatKey(SelectionKey key) {
+        var session = (Session) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                session.doConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.doRead();
+            }
+        } catch (IOException e) {
+            session.silentlyClose();
+        }
+    }
+
+    private void flushDirty() {
+        Session session;
+        while ((session = dirty.poll()) != null) {
+            session.flush();
+        }
+    }
+
+    private void report(double time) {
+        System.out.printf("{\"type\":\"interval\",\"time\":%.3f,\"sent\":%d,\"received\":%d,%s}%n",
+                time, intervalSent, intervalReceived, latencyJson(intervalLatencies));
+        intervalSent = 0;
+        intervalReceived = 0;
+        intervalLatencies.reset();
+    }
+
+    private void summary(double time) {
+        System.out.printf("{\"type\":\"summary\",\"target\":\"%s\",\"servers\":%d,\"sessions\":%d,\"senders\":%d,\"logged\":%d,\"refused\":%d,\"closed\":%d,"
+                        + "\"duration\":%.3f,\"sent\":%d,\"received\":%d,\"sent_per_s\":%.1f,\"received_per_s\":%.1f,"
+                        + "\"heap_per_session\":%d,%s}%n",
+                target, servers.size(), sessionCount, senderCount, logged, refused, closed,
+                time, sent, received, sent / time, received / time, heapPerSession, latencyJson(latencies));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String latencyJson(Histogram histogram) {
+        return String.format("\"p50_us\":%d,\"p99_us\":%d,\"p999_us\":%d,\"max_us\":%d",
+                histogram.percentile(0.5), histogram.percentile(0.99), histogram.percentile(0.999), histogram.max());
+    }
+
+
+    // #################### SESSION #################### //
+
+    private class Session {
+        private final SelectionKey key;
+        private final SocketChannel sc;
+        private final String login;
+        private final ByteBuffer bufferIn;
+        private final PacketReader packetReader = new PacketReader();
+        private final FrameQueue queue = new FrameQueue();
+        private String nameServer;
+        private boolean dirty = false;
+        private long nextSend;
+
+        private Session(SelectionKey key, String login) {
+            this.key = key;
+            this.sc = (SocketChannel) key.channel();
+            this.login = login;
+            this.bufferIn = pool.borrow();
+        }
+
+        private void queueMessage(Packet packet) {
+            queue.add(Envelope.encode(packet));
+            if (!dirty) {
+                dirty = true;
+                LoadGenerator.this.dirty.add(this);
+            }
+        }
+
+        /**
+         * Send the messages due, a sender late by more than a period skips the
+         * messages it missed instead of sending them in a burst
+         */
+        private void sendDue(long now) {
+            if (nameServer == null || !sc.isOpen() || now < nextSend) {
+                return;
+            }
+            queueMessage(new PacketString(4, List.of(nameServer, login, Long.toString(System.nanoTime()))));
+            sent++;
+            intervalSent++;
+            nextSend = Math.max(nextSend + sendPeriod, now - sendPeriod);
+        }
+
+        private void flush() {
+            dirty = false;
+            if (!key.isValid() || !sc.isConnected()) {
+                return;
+            }
+            try {
+                queue.flush(sc);
+            } catch (IOException e) {
+                silentlyClose();
+                return;
+            }
+            updateInterestOps();
+        }
+
+        private void updateInterestOps() {
+            if (!key.isValid()) {
+                return;
+            }
+            var ops = SelectionKey.OP_READ;
+            if (!queue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void processIn(long now) {
+            while (true) {
+                switch (packetReader.process(bufferIn)) {
+                    case DONE -> {
+                        var packet = packetReader.get();
+                        packetReader.reset();
+                        switch (packet.opCodeGet()) {
+                            case 2 -> {
+                                nameServer = (String) packet.components().get(0);
+                                logged++;
+                            }
+                            case 3 -> {
+                                refused++;
+                                silentlyClose();
+                                return;
+                            }
+                            case 4 -> delivered(packet, now);
+                        }
+                    }
+                    case REFILL -> {
+                        return;
+                    }
+                    case ERROR -> {
+                        logger.warning("Malformed frame received by " + login);
+                        silentlyClose();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void delivered(Packet packet, long now) {
+            long sentAt;
+            try {
+                sentAt = Long.parseLong((String) packet.components().get(2));
+            } catch (NumberFormatException e) {
+                // not sent by the generator
+                return;
+            }
+            var latency = (now - sentAt) / 1_000;
+            latencies.record(latency);
+            intervalLatencies.record(latency);
+            received++;
+            intervalReceived++;
+        }
+
+        private void silentlyClose() {
+            if (!sc.isOpen()) {
+                return;
+            }
+            closed++;
+            try {
+                sc.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            pool.release(bufferIn);
+        }
+
+        private void doConnect() throws IOException {
+            if (!sc.finishConnect()) {
+                return;
+            }
+            queueMessage(new PacketString(0, login));
+            updateInterestOps();
+        }
+
+        private void doRead() throws IOException {
+            if (sc.read(bufferIn) == -1) {
+                silentlyClose();
+                return;
+            }
+            processIn(System.nanoTime());
+        }
+
+        private void doWrite() throws IOException {
+            queue.flush(sc);
+            updateInterestOps();
+        }
+    }
+
+    public static void main(String[] args) throws NumberFormatException, IOException, InterruptedException {
+        if (args.length < 5) {
+            usage();
+            return;
+        }
+        var servers = new ArrayList<InetSocketAddress>();
+        var target = "external";
+        Thread embedded = null;
+        if (args.length == 5 && args[4].equals("embedded")) {
+            var port = freePort();
+            var server = new ServerChatFusion(port, "load");
+            embedded = new Thread(() -> {
+                try {
+                    server.launch();
+                } catch (IOException e) {
+                    logger.severe("Embedded server stopped : " + e);
+                }
+            }, "embedded-server");
+            embedded.start();
+            servers.add(new InetSocketAddress("localhost", port));
+            target = System.getProperty("chatfusion.engine", ServerChatFusion.Engine.REACTOR.name()).toLowerCase(Locale.ROOT);
+        }
+        for (int i = 4; i < args.length && target.equals("external"); i++) {
+            var separator = args[i].lastIndexOf(':');
+            if (separator < 0) {
+                usage();
+                return;
+            }
+            servers.add(new InetSocketAddress(args[i].substring(0, separator), Integer.parseInt(args[i].substring(separator + 1))));
+        }
+        new LoadGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Double.parseDouble(args[2]),
+                Integer.parseInt(args[3]), servers, target).launch();
+        if (embedded != null) {
+            // stops the reactors or the session threads of the server
+            embedded.interrupt();
+            embedded.join();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage : LoadGenerator sessions senders messagesPerSecond seconds (host:port [host:port...] | embedded)");
+    }
+}
@@ -0,0 +1,244 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms of a server, updated by every reactor without
+ * allocating so that they can always stay on. <br>
+ * Packets are counted per opcode when they are decoded for the input, and
+ * when they are queued for the output, so a broadcast counts once per
+ * recipient. Opcodes out of the protocol are counted together in the last
+ * slot.
+ */
+final class Metrics implements MetricsMBean {
+
+    static final int OPCODES = 19;
+
+    private final LongAdder[] packetsIn = adders();
+    private final LongAdder[] bytesIn = adders();
+    private final LongAdder[] packetsOut = adders();
+    private final LongAdder[] bytesOut = adders();
+    // time of an iteration of a reactor, from the end of select to the end of the flush phase
+    final Histogram loopTime = new Histogram();
+    // time to read and handle the frames of a readable connection
+    final Histogram processingTime = new Histogram();
+    // bytes left in the queue of a connection after it was flushed
+    final Histogram queueDepth = new Histogram();
+    final LongAdder fusionRequests = new LongAdder();
+    final LongAdder relayedFrames = new LongAdder();
+    final LongAdder forwardedFrames = new LongAdder();
+    // public messages sent to other servers in a batch (opcode 16)
+    final LongAdder batchedMessages = new LongAdder();
+    // bytes of the compressed links before and after compression, both ways, and the time spent on them
+    final LongAdder uncompressedBytes = new LongAdder();
+    final LongAdder compressedBytes = new LongAdder();
+    final LongAdder compressionTime = new LongAdder();
+    private final LongSupplier pendingOutput;
+    private final IntSupplier serverLinks;
+
+    /**
+     * @param pendingOutput bytes waiting in the queues of every connection
+     * @param serverLinks   number of links to other servers
+     */
+    Metrics(LongSupplier pendingOutput, IntSupplier serverLinks) {
+        this.pendingOutput = pendingOutput;
+        this.serverLinks = serverLinks;
+    }
+
+    private static LongAdder[] adders() {
+        var adders = new LongAdder[OPCODES];
+        for (int i = 0; i < OPCODES; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int slot(int opCode) {
+        return opCode >= 0 && opCode < OPCODES - 1 ? opCode : OPCODES - 1;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        var sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    void packetIn(int opCode, long bytes) {
+        packetsIn[slot(opCode)].increment();
+        bytesIn[slot(opCode)].add(bytes);
+    }
+
+    void packetOut(int opCode, long bytes) {
+        packetsOut[slot(opCode)].increment();
+        bytesOut[slot(opCode)].add(bytes);
+    }
+
+    @Override
+    public long[] getPacketsIn() {
+        return sums(packetsIn);
+    }
+
+    @Override
+    public long[] getBytesIn() {
+        return sums(bytesIn);
+    }
+
+    @Override
+    public long[] getPacketsOut() {
+        return sums(packetsOut);
+    }
+
+    @Override
+    public long[] getBytesOut() {
+        return sums(bytesOut);
+    }
+
+    @Override
+    public long getLoopIterations() {
+        return loopTime.count();
+    }
+
+    @Override
+    public long getLoopTimeP50() {
+        return loopTime.percentile(0.5);
+    }
+
+    @Override
+    public long getLoopTimeP99() {
+        return loopTime.percentile(0.99);
+    }
+
+    @Override
+    public long getLoopTimeMax() {
+        return loopTime.max();
+    }
+
+    @Override
+    public long getProcessingTimeP50() {
+        return processingTime.percentile(0.5);
+    }
+
+    @Override
+    public long getProcessingTimeP99() {
+        return processingTime.percentile(0.99);
+    }
+
+    @Override
+    public long getProcessingTimeMax() {
+        return processingTime.max();
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return queueDepth.percentile(0.99);
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.max();
+    }
+
+    @Override
+    public long getPendingOutput() {
+        return pendingOutput.getAsLong();
+    }
+
+    @Override
+    public int getServerLinks() {
+        return serverLinks.getAsInt();
+    }
+
+    @Override
+    public long getFusionRequests() {
+        return fusionRequests.sum();
+    }
+
+    @Override
+    public long getRelayedFrames() {
+        return relayedFrames.sum();
+    }
+
+    @Override
+    public long getForwardedFrames() {
+        return forwardedFrames.sum();
+    }
+
+    @Override
+    public long getBatchedMessages() {
+        return batchedMessages.sum();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    @Override
+    public long getCompressionTime() {
+        return compressionTime.sum();
+    }
+
+    /**
+     * @return compressed bytes as a percentage of the uncompressed ones
+     */
+    static String ratio(long compressed, long uncompressed) {
+        return uncompressed == 0 ? "-" : compressed * 100 / uncompressed + "%";
+    }
+
+    @Override
+    public String report() {
+        var sb = new StringBuilder();
+        var packetsIn = getPacketsIn();
+        var bytesIn = getBytesIn();
+        var packetsOut = getPacketsOut();
+        var bytesOut = getBytesOut();
+        sb.append(String.format("%-8s %12s %14s %12s %14s%n", "opcode", "packets in", "bytes in", "packets out", "bytes out"));
+        for (int i = 0; i < OPCODES; i++) {
+            if (packetsIn[i] != 0 || packetsOut[i] != 0) {
+                sb.append(String.format("%-8s %12d %14d %12d %14d%n", i == OPCODES - 1 ? "other" : i,
+                        packetsIn[i], bytesIn[i], packetsOut[i], bytesOut[i]));
+            }
+        }
+        sb.append("loop (ns)        : ").append(loopTime).append('\n');
+        sb.append("processing (ns)  : ").append(processingTime).append('\n');
+        sb.append("queue depth (B)  : ").append(queueDepth).append('\n');
+        sb.append("pending output   : ").append(getPendingOutput()).append(" bytes\n");
+        sb.append("server links     : ").append(getServerLinks())
+                .append(", fusion requests ").append(getFusionRequests())
+                .append(", relayed ").append(getRelayedFrames())
+                .append(", forwarded ").append(getForwardedFrames())
+                .append(", batched ").append(getBatchedMessages()).append('\n');
+        sb.append("compression      : ").append(getUncompressedBytes()).append(" -> ").append(getCompressedBytes())
+                .append(" bytes (").append(ratio(getCompressedBytes(), getUncompressedBytes())).append("), ")
+                .append(getCompressionTime() / 1_000_000).append(" ms");
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (var adders : new LongAdder[][]{packetsIn, bytesIn, packetsOut, bytesOut}) {
+            for (var adder : adders) {
+                adder.reset();
+            }
+        }
+        loopTime.reset();
+        processingTime.reset();
+        queueDepth.reset();
+        fusionRequests.reset();
+        relayedFrames.reset();
+        forwardedFrames.reset();
+        batchedMessages.reset();
+        uncompressedBytes.reset();
+        compressedBytes.reset();
+        compressionTime.reset();
+    }
+}
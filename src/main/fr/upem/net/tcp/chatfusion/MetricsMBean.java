@@ -0,0 +1,56 @@
+package fr.upem.net.tcp.chatfusion;
+
+/**
+ * Metrics of a running ServerChatFusion exposed through JMX, arrays are
+ * indexed by opcode. Times are in nanoseconds, queue depths in bytes.
+ */
+public interface MetricsMBean {
+
+    long[] getPacketsIn();
+
+    long[] getBytesIn();
+
+    long[] getPacketsOut();
+
+    long[] getBytesOut();
+
+    long getLoopIterations();
+
+    long getLoopTimeP50();
+
+    long getLoopTimeP99();
+
+    long getLoopTimeMax();
+
+    long getProcessingTimeP50();
+
+    long getProcessingTimeP99();
+
+    long getProcessingTimeMax();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    long getPendingOutput();
+
+    int getServerLinks();
+
+    long getFusionRequests();
+
+    long getRelayedFrames();
+
+    long getForwardedFrames();
+
+    long getBatchedMessages();
+
+    long getUncompressedBytes();
+
+    long getCompressedBytes();
+
+    long getCompressionTime();
+
+    String report();
+
+    void reset();
+}
@@ -0,0 +1,130 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits of the output waiting in the FrameQueue of every connection of a
+ * server. <br>
+ * A connection may hold up to highWatermark bytes, and all of them together
+ * up to limit bytes. Past that, the policy decides what happens to a slow
+ * consumer : its oldest frames are dropped until it is back to lowWatermark,
+ * new frames are dropped until it drains to lowWatermark, or it is
+ * disconnected. <br>
+ * The budget is shared by every reactor, so it only holds atomic counters.
+ */
+final class OutputBudget {
+
+    enum Policy {DROP_OLDEST, DROP_NEW, DISCONNECT}
+
+    static final long HIGH_WATERMARK = Long.getLong("chatfusion.queue.high", 1L << 20);
+    static final long LOW_WATERMARK = Long.getLong("chatfusion.queue.low", HIGH_WATERMARK / 4);
+    static final Policy POLICY = Policy.valueOf(System.getProperty("chatfusion.queue.policy", Policy.DISCONNECT.name()));
+    static final long LIMIT = Long.getLong("chatfusion.queue.budget", Runtime.getRuntime().maxMemory() / 4);
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Policy policy;
+    private final long limit;
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder[] fired = new LongAdder[Policy.values().length];
+    private final LongAdder[] dropped = new LongAdder[Policy.values().length];
+
+    OutputBudget() {
+        this(HIGH_WATERMARK, LOW_WATERMARK, POLICY, LIMIT);
+    }
+
+    OutputBudget(long highWatermark, long lowWatermark, Policy policy, long limit) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > limit) {
+            throw new IllegalArgumentException("watermarks " + lowWatermark + "/" + highWatermark + " don't fit in a budget of " + limit + " bytes");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.limit = limit;
+        for (int i = 0; i < fired.length; i++) {
+            fired[i] = new LongAdder();
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    long highWatermark() {
+        return highWatermark;
+    }
+
+    long lowWatermark() {
+        return lowWatermark;
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * @return true if the bytes fit in the budget and are now counted as pending
+     */
+    boolean reserve(long bytes) {
+        if (pending.addAndGet(bytes) > limit) {
+            pending.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back bytes written or dropped
+     */
+    void release(long bytes) {
+        pending.addAndGet(-bytes);
+    }
+
+    /**
+     * Count an application of the policy to a connection
+     *
+     * @param frames number of frames it dropped
+     */
+    void fired(Policy policy, int frames) {
+        fired[policy.ordinal()].increment();
+        dropped(policy, frames);
+    }
+
+    /**
+     * Count frames dropped by an application of the policy already counted,
+     * like the frames DROP_NEW drops until the queue drains
+     */
+    void dropped(Policy policy, int frames) {
+        dropped[policy.ordinal()].add(frames);
+    }
+
+    /**
+     * @return bytes waiting in the queues of every connection
+     */
+    long pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of times the policy was applied to a connection
+     */
+    long fired(Policy policy) {
+        return fired[policy.ordinal()].sum();
+    }
+
+    /**
+     * @return number of frames dropped by the policy, those of the
+     * connections it disconnected included
+     */
+    long droppedFrames(Policy policy) {
+        return dropped[policy.ordinal()].sum();
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder();
+        sb.append(pending()).append('/').append(limit).append(" bytes pending, policy ").append(policy);
+        for (var p : Policy.values()) {
+            sb.append(", ").append(p).append(' ').append(fired(p)).append(" (").append(droppedFrames(p)).append(" frames)");
+        }
+        return sb.toString();
+    }
+}
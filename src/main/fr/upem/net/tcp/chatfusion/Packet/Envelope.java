@@ -0,0 +1,49 @@
+package fr.upem.net.tcp.chatfusion.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional framing of the protocol, enabled with the chatfusion.envelope
+ * property on every server and client. <br>
+ * In this mode every frame carries its total size right after the opcode : <br>
+ * - opcode (int) : 4 bytes <br>
+ * - size of the whole frame, header included (int) : 4 bytes <br>
+ * - payload of the opcode : n bytes <br>
+ * so the end of a frame is known without decoding it, unknown opcodes can be
+ * skipped and whole frames can be forwarded as they are.
+ */
+public final class Envelope {
+
+    public static final boolean ENABLED = Boolean.getBoolean("chatfusion.envelope");
+    public static final int HEADER_SIZE = Integer.BYTES * 2;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private Envelope() {
+    }
+
+    /**
+     * Serialize the packet as it is sent on the wire with the framing in use
+     *
+     * @param packet Packet
+     * @return ByteBuffer in read-mode
+     */
+    public static ByteBuffer encode(Packet packet) {
+        return encode(packet, ENABLED);
+    }
+
+    /**
+     * @param packet   Packet
+     * @param envelope true to add the size of the frame after the opcode
+     * @return ByteBuffer in read-mode
+     */
+    public static ByteBuffer encode(Packet packet, boolean envelope) {
+        var plain = packet.generateByteBuffer().flip();
+        // frames, views and batches are already serialized with the framing in use
+        if (!envelope || packet instanceof PacketFrame || packet instanceof PacketView || packet instanceof PacketBatch) {
+            return plain;
+        }
+        var frame = ByteBuffer.allocate(plain.remaining() + Integer.BYTES);
+        frame.putInt(plain.getInt()).putInt(frame.capacity()).put(plain);
+        return frame.flip();
+    }
+}
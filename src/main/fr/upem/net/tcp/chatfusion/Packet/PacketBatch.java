@@ -0,0 +1,197 @@
+package fr.upem.net.tcp.chatfusion.Packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Public messages of one server packed in a single frame, only sent on the
+ * links between servers : <br>
+ * - opcode 16 (int), followed by the size of the frame with the Envelope framing <br>
+ * - name of the server of the senders (string) <br>
+ * - number of messages (int) <br>
+ * - login and text of each message (string, string) <br>
+ * The framing and the server name are sent once for all the messages. Like a
+ * PacketView the batch is backed by the bytes of its frame, the messages are
+ * turned back into public messages (opcode 4) by copying their bytes, nothing
+ * is decoded.
+ */
+public final class PacketBatch implements Packet {
+
+    public static final int OPCODE = 16;
+    private static final Charset cs = StandardCharsets.UTF_8;
+
+    private final ByteBuffer frame;
+    // offset of the server name, after the opcode or the envelope
+    private final int payload;
+    // offset of the login of each message
+    private final int[] offsets;
+    private final List<String> components = new AbstractList<>() {
+        @Override
+        public String get(int index) {
+            if (index == 0) {
+                return server();
+            }
+            var offset = offsets[(index - 1) / 2];
+            if (index % 2 == 0) {
+                offset += Integer.BYTES + frame.getInt(offset);
+            }
+            return string(offset);
+        }
+
+        @Override
+        public int size() {
+            return 1 + offsets.length * 2;
+        }
+    };
+
+    /**
+     * @param frame   ByteBuffer in read-mode holding exactly one frame, it must not be modified afterwards
+     * @param payload offset of the server name, after the opcode or the envelope
+     */
+    public PacketBatch(ByteBuffer frame, int payload) {
+        this.frame = frame.slice().asReadOnlyBuffer();
+        this.payload = payload;
+        var offset = payload + Integer.BYTES + this.frame.getInt(payload);
+        offsets = new int[this.frame.getInt(offset)];
+        offset += Integer.BYTES;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += Integer.BYTES + this.frame.getInt(offset);
+            offset += Integer.BYTES + this.frame.getInt(offset);
+        }
+    }
+
+    private String string(int offset) {
+        return cs.decode(frame.slice(offset + Integer.BYTES, frame.getInt(offset))).toString();
+    }
+
+    public String server() {
+        return string(payload);
+    }
+
+    public int count() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the public message (opcode 4) at the given index, with the
+     * framing of the batch
+     */
+    public PacketView message(int index) {
+        var server = Integer.BYTES + frame.getInt(payload);
+        var start = offsets[index];
+        var end = start + Integer.BYTES + frame.getInt(start);
+        end += Integer.BYTES + frame.getInt(end);
+        var size = payload + server + end - start;
+        var bb = ByteBuffer.allocate(size).putInt(4);
+        if (payload == Envelope.HEADER_SIZE) {
+            bb.putInt(size);
+        }
+        bb.put(frame.slice(payload, server)).put(frame.slice(start, end - start));
+        return new PacketView(bb.flip(), payload, 3);
+    }
+
+    @Override
+    public int opCodeGet() {
+        return OPCODE;
+    }
+
+    @Override
+    public int size() {
+        return frame.limit();
+    }
+
+    /**
+     * @return the server name then the login and the text of each message,
+     * decoded when they are read
+     */
+    @Override
+    public List<String> components() {
+        return components;
+    }
+
+    /**
+     * Like every other packet the returned buffer is in write-mode, the caller
+     * has to flip it. It is a read-only duplicate sharing the bytes of the frame.
+     *
+     * @return ByteBuffer
+     */
+    @Override
+    public ByteBuffer generateByteBuffer() {
+        return frame.duplicate().position(frame.limit());
+    }
+
+    @Override
+    public String toString() {
+        return "PacketBatch[count=" + count() + ", size=" + size() + "]";
+    }
+
+    /**
+     * Packs public messages of one server, their login and text are copied
+     * from their frame without being decoded
+     */
+    public static final class Builder {
+        private final boolean envelope;
+        private final ByteBuffer server;
+        private ByteBuffer messages = ByteBuffer.allocate(256);
+        private int count;
+
+        public Builder(String server) {
+            this(server, Envelope.ENABLED);
+        }
+
+        /**
+         * @param envelope true to build frames with the Envelope framing
+         */
+        public Builder(String server, boolean envelope) {
+            this.envelope = envelope;
+            var bytes = cs.encode(server);
+            this.server = ByteBuffer.allocate(Integer.BYTES + bytes.remaining()).putInt(bytes.remaining()).put(bytes).flip();
+        }
+
+        /**
+         * @param message public message (opcode 4) of the server of the builder
+         */
+        public void add(Packet message) {
+            var bb = Envelope.encode(message, envelope);
+            var start = bb.position() + (envelope ? Envelope.HEADER_SIZE : Integer.BYTES);
+            start += Integer.BYTES + bb.getInt(start);
+            var length = bb.limit() - start;
+            if (messages.remaining() < length) {
+                var larger = ByteBuffer.allocate(Math.max(messages.capacity() * 2, messages.position() + length));
+                messages = larger.put(messages.flip());
+            }
+            messages.put(bb.slice(start, length));
+            count++;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * @return size of the frame build would return
+         */
+        public int size() {
+            return (envelope ? Envelope.HEADER_SIZE : Integer.BYTES) + server.remaining() + Integer.BYTES + messages.position();
+        }
+
+        /**
+         * @return the batch of the messages added since the last call, the builder is emptied
+         */
+        public PacketBatch build() {
+            var size = size();
+            var frame = ByteBuffer.allocate(size).putInt(OPCODE);
+            if (envelope) {
+                frame.putInt(size);
+            }
+            frame.put(server.duplicate()).putInt(count).put(messages.flip());
+            messages.clear();
+            count = 0;
+            return new PacketBatch(frame.flip(), envelope ? Envelope.HEADER_SIZE : Integer.BYTES);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package fr.upem.net.tcp.chatfusion.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Packet serialized a single time so that it can be shared by many recipients. <br>
+ * The bytes are kept in a read-only buffer and generateByteBuffer only returns a
+ * new view on them, so queueing the frame for n recipients costs no encoding. <br>
+ * The bytes are the frame as it goes on the wire, see Envelope.
+ */
+public record PacketFrame(Packet packet, ByteBuffer frame) implements Packet {
+
+    public PacketFrame {
+        // frame is expected in read-mode, only its content is kept
+        frame = frame.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Encode the packet once, or return it unchanged if it already is a frame.
+     * The bytes of a PacketView or a PacketBatch are shared as they are.
+     *
+     * @param packet Packet
+     * @return PacketFrame
+     */
+    public static PacketFrame of(Packet packet) {
+        if (packet instanceof PacketFrame packetFrame) {
+            return packetFrame;
+        }
+        if (packet instanceof PacketView || packet instanceof PacketBatch) {
+            return new PacketFrame(packet, packet.generateByteBuffer().flip());
+        }
+        return new PacketFrame(packet, Envelope.encode(packet));
+    }
+
+    @Override
+    public int opCodeGet() {
+        return frame.getInt(0);
+    }
+
+    @Override
+    public int size() {
+        return frame.limit();
+    }
+
+    @Override
+    public List<?> components() {
+        return packet.components();
+    }
+
+    /**
+     * Like every other packet the returned buffer is in write-mode, the caller
+     * has to flip it. It is a read-only duplicate sharing the bytes of the frame.
+     *
+     * @return ByteBuffer
+     */
+    @Override
+    public ByteBuffer generateByteBuffer() {
+        return frame.duplicate().position(frame.limit());
+    }
+}
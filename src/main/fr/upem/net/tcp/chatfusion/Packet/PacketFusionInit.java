@@ -1,19 +1,30 @@
 package fr.upem.net.tcp.chatfusion.Packet;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.logging.Logger;
 
-public record PacketFusionInit (int opCode, String name, SocketAddress sa, int nbMembers, List<String> components) implements Packet {
-    static private final Logger logger = Logger.getLogger(PacketFusionInit.class.getName());
+/**
+ * Fusion request (opcode 8) or acceptance (opcode 9). <br>
+ * With the Envelope framing the frame may end with the capabilities of the
+ * server (int), a set of bits for the optional features of the link it
+ * supports. The int is only written when it isn't 0, so the frame stays the
+ * same for servers without any.
+ */
+public record PacketFusionInit (int opCode, String name, SocketAddress sa, int nbMembers, List<String> components, int capabilities) implements Packet {
     private static final Charset cs = StandardCharsets.UTF_8;
 
+    public PacketFusionInit(int opCode, String name, SocketAddress sa, int nbMembers, List<String> components) {
+        this(opCode, name, sa, nbMembers, components, 0);
+    }
+
+    public PacketFusionInit withCapabilities(int capabilities) {
+        return new PacketFusionInit(opCode, name, sa, nbMembers, components, capabilities);
+    }
+
     @Override
     public int opCodeGet() {
         return opCode;
@@ -23,9 +34,11 @@ public record PacketFusionInit (int opCode, String name, SocketAddress sa, int n
     public int size() {
         var size = Integer.BYTES * 2;
         size += cs.encode(name).limit() + Integer.BYTES;
-        size += Integer.BYTES * 2 + Byte.BYTES * 4;
+        size += Integer.BYTES * 2 + ((InetSocketAddress) sa).getAddress().getAddress().length;
         for (var component : components)
             size += cs.encode(component).limit() + Integer.BYTES;
+        if (capabilities != 0)
+            size += Integer.BYTES;
         return size;
     }
 
@@ -42,19 +55,12 @@ public record PacketFusionInit (int opCode, String name, SocketAddress sa, int n
         bb.putInt(bbName.limit());
         bb.put(bbName);
 
+        // same layout as SocketAddressReader : size of the address, address, port
         var inetSA = (InetSocketAddress) sa;
-        var ipAddress = inetSA.getHostName();
-        try {
-            InetAddress ip = InetAddress.getByName(ipAddress);
-            var bytes = ip.getAddress();
-            for (byte b : bytes) {
-                bb.put(b);
-            }
-            bb.putInt(inetSA.getPort());
-        }
-        catch (IOException ioe){
-            logger.info("Error from Socket Address in buffer");
-        }
+        var bytes = inetSA.getAddress().getAddress();
+        bb.putInt(bytes.length);
+        bb.put(bytes);
+        bb.putInt(inetSA.getPort());
 
         bb.putInt(nbMembers);
         for (var component : components) {
@@ -62,6 +68,9 @@ public record PacketFusionInit (int opCode, String name, SocketAddress sa, int n
             bb.putInt(bbComponent.limit());
             bb.put(bbComponent);
         }
+        if (capabilities != 0) {
+            bb.putInt(capabilities);
+        }
         return bb;
     }
 }
@@ -3,14 +3,10 @@ package fr.upem.net.tcp.chatfusion.Packet;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 public record PacketSocketAddress(int opCode, SocketAddress sa) implements Packet {
 
-    private static final Charset cs = StandardCharsets.UTF_8;
-
     @Override
     public int opCodeGet() {
         return opCode;
@@ -19,7 +15,7 @@ public record PacketSocketAddress(int opCode, SocketAddress sa) implements Packe
     @Override
     public int size() {
         int size = Integer.BYTES;
-        size += Integer.BYTES * 2 + Byte.BYTES * 4;
+        size += Integer.BYTES * 2 + ((InetSocketAddress) sa).getAddress().getAddress().length;
         return size;
     }
 
@@ -32,9 +28,11 @@ public record PacketSocketAddress(int opCode, SocketAddress sa) implements Packe
     public ByteBuffer generateByteBuffer() {
         var bb = ByteBuffer.allocate(size());
         bb.putInt(opCode);
+        // same layout as SocketAddressReader : size of the address, address, port
         var inetSA = (InetSocketAddress) sa;
-        var bbIPAddress = cs.encode(inetSA.getHostName());
-        bb.put(bbIPAddress);
+        var bytes = inetSA.getAddress().getAddress();
+        bb.putInt(bytes.length);
+        bb.put(bytes);
         bb.putInt(inetSA.getPort());
         return bb;
     }
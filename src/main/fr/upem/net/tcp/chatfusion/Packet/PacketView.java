@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.chatfusion.Packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Packet made of strings received from the network and backed by the bytes of
+ * its frame. <br>
+ * A string of components() is only decoded the first time it is accessed, so a
+ * server routing a public message never turns its text into a String. The frame
+ * is already serialized : generateByteBuffer returns the received bytes.
+ */
+public final class PacketView implements Packet {
+
+    private static final Charset cs = StandardCharsets.UTF_8;
+
+    private final ByteBuffer frame;
+    // offset of the length of each string in frame
+    private final int[] offsets;
+    private final String[] strings;
+    private final List<String> components = new AbstractList<>() {
+        @Override
+        public String get(int index) {
+            var string = strings[index];
+            if (string == null) {
+                string = decode(index);
+                strings[index] = string;
+            }
+            return string;
+        }
+
+        @Override
+        public int size() {
+            return strings.length;
+        }
+    };
+
+    /**
+     * @param frame   ByteBuffer in read-mode holding exactly one frame, it must not be modified afterwards
+     * @param payload offset of the first string, after the opcode or the envelope
+     * @param count   number of strings of the payload
+     */
+    public PacketView(ByteBuffer frame, int payload, int count) {
+        this.frame = frame.slice().asReadOnlyBuffer();
+        this.offsets = new int[count];
+        this.strings = new String[count];
+        var offset = payload;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = offset;
+            offset += Integer.BYTES + this.frame.getInt(offset);
+        }
+    }
+
+    private String decode(int index) {
+        var offset = offsets[index];
+        return cs.decode(frame.slice(offset + Integer.BYTES, frame.getInt(offset))).toString();
+    }
+
+    @Override
+    public int opCodeGet() {
+        return frame.getInt(0);
+    }
+
+    @Override
+    public int size() {
+        return frame.limit();
+    }
+
+    @Override
+    public List<String> components() {
+        return components;
+    }
+
+    /**
+     * Like every other packet the returned buffer is in write-mode, the caller
+     * has to flip it. It is a read-only duplicate sharing the bytes of the frame.
+     *
+     * @return ByteBuffer
+     */
+    @Override
+    public ByteBuffer generateByteBuffer() {
+        return frame.duplicate().position(frame.limit());
+    }
+
+    @Override
+    public String toString() {
+        return "PacketView[opCode=" + opCodeGet() + ", size=" + size() + "]";
+    }
+}
@@ -0,0 +1,143 @@
+package fr.upem.net.tcp.chatfusion.Reader;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import fr.upem.net.tcp.chatfusion.Packet.PacketBatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumable reader of the payload of a batch (opcode 16), for the batches
+ * larger than the buffer they are read from. The bytes of the strings are
+ * copied as they are received, nothing is decoded.
+ */
+public class BatchReader implements Reader<PacketBatch> {
+
+    private enum State {DONE, SERVER, COUNT, MESSAGES, ERROR}
+
+    private final boolean envelope;
+    private final IntReader intReader = new IntReader();
+    private State state = State.SERVER;
+    // header then payload of the frame, grown while it is read, allocated by the first call to process
+    private ByteBuffer frame;
+    // strings of the messages still to read, bytes of the current string still to copy
+    private int strings;
+    private int bytes = -1;
+    private PacketBatch value;
+
+    /**
+     * @param envelope true if frames carry their size after the opcode
+     */
+    public BatchReader(boolean envelope) {
+        this.envelope = envelope;
+    }
+
+    @Override
+    public ProcessStatus process(ByteBuffer bb) {
+        if (state == State.DONE || state == State.ERROR) {
+            throw new IllegalStateException();
+        }
+        if (frame == null) {
+            frame = ByteBuffer.allocate(256).putInt(PacketBatch.OPCODE);
+            if (envelope) {
+                // the size is written once the frame is complete
+                frame.putInt(0);
+            }
+        }
+        for (; ; ) {
+            if (state == State.COUNT) {
+                var status = intReader.process(bb);
+                if (status != ProcessStatus.DONE) {
+                    return status;
+                }
+                var count = intReader.get();
+                intReader.reset();
+                if (count < 0 || count > Envelope.MAX_FRAME_SIZE / (Integer.BYTES * 2)) {
+                    state = State.ERROR;
+                    return ProcessStatus.ERROR;
+                }
+                put(Integer.BYTES).putInt(count);
+                strings = count * 2;
+                state = State.MESSAGES;
+            }
+            if (state == State.MESSAGES && strings == 0) {
+                var size = frame.position();
+                if (envelope) {
+                    frame.putInt(Integer.BYTES, size);
+                }
+                value = new PacketBatch(frame.flip(), envelope ? Envelope.HEADER_SIZE : Integer.BYTES);
+                state = State.DONE;
+                return ProcessStatus.DONE;
+            }
+            var status = string(bb);
+            if (status != ProcessStatus.DONE) {
+                return status;
+            }
+            if (state == State.SERVER) {
+                state = State.COUNT;
+            } else {
+                strings--;
+            }
+        }
+    }
+
+    /**
+     * Copy the length then the bytes of a string
+     */
+    private ProcessStatus string(ByteBuffer bb) {
+        if (bytes == -1) {
+            var status = intReader.process(bb);
+            if (status != ProcessStatus.DONE) {
+                return status;
+            }
+            bytes = intReader.get();
+            intReader.reset();
+            if (bytes <= 0 || bytes > StringReader.BUFFER_SIZE || frame.position() + bytes > Envelope.MAX_FRAME_SIZE) {
+                state = State.ERROR;
+                return ProcessStatus.ERROR;
+            }
+            put(Integer.BYTES).putInt(bytes);
+        }
+        bb.flip();
+        try {
+            var copied = Math.min(bytes, bb.remaining());
+            put(copied).put(bb.slice(bb.position(), copied));
+            bb.position(bb.position() + copied);
+            bytes -= copied;
+        } finally {
+            bb.compact();
+        }
+        if (bytes > 0) {
+            return ProcessStatus.REFILL;
+        }
+        bytes = -1;
+        return ProcessStatus.DONE;
+    }
+
+    /**
+     * @return frame with room for the given number of bytes
+     */
+    private ByteBuffer put(int size) {
+        if (frame.remaining() < size) {
+            frame = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + size)).put(frame.flip());
+        }
+        return frame;
+    }
+
+    @Override
+    public PacketBatch get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        state = State.SERVER;
+        frame = null;
+        strings = 0;
+        bytes = -1;
+        intReader.reset();
+        value = null;
+    }
+}
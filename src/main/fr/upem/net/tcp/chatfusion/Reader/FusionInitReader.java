@@ -67,6 +67,10 @@ public class FusionInitReader implements Reader<PacketFusionInit> {
             switch (status) {
                 case DONE:
                     nbMember = intReader.get();
+                    if (nbMember < 0) {
+                        state = FusionInitReader.State.ERROR;
+                        return ProcessStatus.ERROR;
+                    }
                     break;
                 case REFILL:
                     return ProcessStatus.REFILL;
@@ -93,7 +97,7 @@ public class FusionInitReader implements Reader<PacketFusionInit> {
             stringReader.reset();
         }
         state = FusionInitReader.State.DONE;
-        value = new PacketFusionInit(opCode, name, inetSA, nbMember, namesMember);
+        value = new PacketFusionInit(opCode, name, inetSA, nbMember, List.copyOf(namesMember));
         return ProcessStatus.DONE;
     }
 
@@ -107,8 +111,13 @@ public class FusionInitReader implements Reader<PacketFusionInit> {
 
     @Override
     public void reset() {
+        state = FusionInitReader.State.WAITING;
         name = "";
+        inetSA = null;
         nbMember = -1;
         namesMember.clear();
+        stringReader.reset();
+        intReader.reset();
+        socketAddressReader.reset();
     }
 }
@@ -1,135 +1,513 @@
 package fr.upem.net.tcp.chatfusion.Reader;
 
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
 import fr.upem.net.tcp.chatfusion.Packet.Packet;
+import fr.upem.net.tcp.chatfusion.Packet.PacketBatch;
+import fr.upem.net.tcp.chatfusion.Packet.PacketFusionInit;
+import fr.upem.net.tcp.chatfusion.Packet.PacketOpcode;
 import fr.upem.net.tcp.chatfusion.Packet.PacketSocketAddress;
 import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+import fr.upem.net.tcp.chatfusion.Packet.PacketView;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Read any packet of the protocol. <br>
+ * When the whole frame is already in the buffer it is parsed in place with
+ * absolute gets and the buffer is compacted once. While the frame is incomplete
+ * and the buffer still has room nothing is consumed, so the next read can
+ * complete it. Only frames larger than the buffer, or malformed ones, go
+ * through the resumable readers of each opcode. <br>
+ * A whole public message is not decoded : it is copied to a PacketView whose
+ * strings are decoded when they are read, the same goes for a batch of public
+ * messages copied to a PacketBatch. <br>
+ * With the Envelope framing, frames of unknown opcodes are skipped, and the
+ * frames of opcodes 8 and 9 may end with the capabilities of the server.
+ */
 public class PacketReader implements Reader<Packet> {
-    private enum State {DONE, WAITING, ERROR}
+    private enum State {DONE, OPCODE, SIZE, PAYLOAD, CAPABILITIES, SKIP, ERROR}
 
-    private State state = State.WAITING;
+    private static final int INCOMPLETE = -1;
+    private static final int FALLBACK = -2;
+    private static final int MALFORMED = -3;
+
+    private final boolean envelope;
+    private State state = State.OPCODE;
     private final IntReader intReader = new IntReader();
     private final ConnectReader connectReader = new ConnectReader();
     private final PublicMessageReader publicMessageReader = new PublicMessageReader();
     private final FusionInitReader fusionInitReader = new FusionInitReader(8);
+    private final FusionInitReader fusionInitOkReader = new FusionInitReader(9);
     private final SocketAddressReader socketAddressReader = new SocketAddressReader();
     private final StringReader stringReader = new StringReader();
+    private final BatchReader batchReader;
     private int opCode;
+    // bytes of the frame still to read with the Envelope framing, or to skip for an unknown opcode
+    private int skip;
     private Packet packet;
 
+    public PacketReader() {
+        this(Envelope.ENABLED);
+    }
+
+    /**
+     * @param envelope true if frames carry their size after the opcode
+     */
+    public PacketReader(boolean envelope) {
+        this.envelope = envelope;
+        this.batchReader = new BatchReader(envelope);
+    }
+
     @Override
     public ProcessStatus process(ByteBuffer bb) {
         if (state == State.DONE || state == State.ERROR) {
             throw new IllegalStateException();
         }
-        ProcessStatus status = intReader.process(bb);
-        switch (status) {
-            case DONE -> opCode = intReader.get();
-            case REFILL -> {
-                return ProcessStatus.REFILL;
+        for (; ; ) {
+            if (state == State.OPCODE) {
+                var size = envelope ? envelopeSize(bb) : frameSize(bb, Integer.BYTES, bb.position());
+                if (size >= 0 && bb.getInt(0) == 4) {
+                    // public messages stay in their bytes until someone reads them
+                    packet = view(bb, envelope ? Envelope.HEADER_SIZE : Integer.BYTES, size);
+                    state = State.DONE;
+                    return ProcessStatus.DONE;
+                }
+                if (size >= 0 && bb.getInt(0) == PacketBatch.OPCODE) {
+                    packet = new PacketBatch(take(bb, size), envelope ? Envelope.HEADER_SIZE : Integer.BYTES);
+                    state = State.DONE;
+                    return ProcessStatus.DONE;
+                }
+                if (size >= 0) {
+                    var opCode = bb.getInt(0);
+                    packet = isKnown(opCode) ? decode(bb, opCode, envelope ? Envelope.HEADER_SIZE : Integer.BYTES, size) : null;
+                    bb.flip().position(size);
+                    bb.compact();
+                    if (!isKnown(opCode)) {
+                        continue;
+                    }
+                    state = packet == null ? State.ERROR : State.DONE;
+                    return packet == null ? ProcessStatus.ERROR : ProcessStatus.DONE;
+                }
+                if (size == INCOMPLETE && bb.hasRemaining()) {
+                    return ProcessStatus.REFILL;
+                }
+                if (size == MALFORMED) {
+                    return fail(ProcessStatus.ERROR);
+                }
+                var status = intReader.process(bb);
+                if (status != ProcessStatus.DONE) {
+                    return fail(status);
+                }
+                opCode = intReader.get();
+                intReader.reset();
+                state = envelope ? State.SIZE : State.PAYLOAD;
             }
-            case ERROR -> {
-                state = State.ERROR;
-                return ProcessStatus.ERROR;
+            if (state == State.SIZE) {
+                var status = intReader.process(bb);
+                if (status != ProcessStatus.DONE) {
+                    return fail(status);
+                }
+                var size = intReader.get();
+                intReader.reset();
+                if (size < Envelope.HEADER_SIZE || size > Envelope.MAX_FRAME_SIZE) {
+                    return fail(ProcessStatus.ERROR);
+                }
+                skip = size - Envelope.HEADER_SIZE;
+                state = isKnown(opCode) ? State.PAYLOAD : State.SKIP;
             }
+            if (state == State.SKIP) {
+                var skipped = Math.min(skip, bb.position());
+                bb.flip().position(skipped);
+                bb.compact();
+                skip -= skipped;
+                if (skip > 0) {
+                    return ProcessStatus.REFILL;
+                }
+                state = State.OPCODE;
+                continue;
+            }
+            if (state == State.CAPABILITIES) {
+                var status = intReader.process(bb);
+                if (status != ProcessStatus.DONE) {
+                    return fail(status);
+                }
+                packet = ((PacketFusionInit) packet).withCapabilities(intReader.get());
+                intReader.reset();
+                state = State.DONE;
+                return ProcessStatus.DONE;
+            }
+            var available = bb.position();
+            var status = processPayload(bb);
+            if (envelope) {
+                skip -= available - bb.position();
+            }
+            if (status == ProcessStatus.DONE && envelope && skip != 0) {
+                // what is left of the frame can only be the capabilities of a fusion,
+                // any other difference with the size would put the stream out of step
+                if ((opCode != 8 && opCode != 9) || skip != Integer.BYTES) {
+                    return fail(ProcessStatus.ERROR);
+                }
+                state = State.CAPABILITIES;
+                continue;
+            }
+            switch (status) {
+                case DONE -> state = State.DONE;
+                case ERROR -> state = State.ERROR;
+            }
+            return status;
         }
-        intReader.reset();
+    }
+
+    private ProcessStatus fail(ProcessStatus status) {
+        if (status == ProcessStatus.ERROR) {
+            state = State.ERROR;
+        }
+        return status;
+    }
+
+    private static boolean isKnown(int opCode) {
+        return switch (opCode) {
+            case 0, 1, 2, 3, 4, 8, 9, 10, 11, 14, 15, 17, PacketBatch.OPCODE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Resumable path, the opcode is already read and the payload is read by the
+     * reader of this opcode
+     */
+    private ProcessStatus processPayload(ByteBuffer bb) {
         switch (opCode) {
             case 0, 1 -> {
-                status = connectReader.process(bb);
-                switch (status) {
-                    case DONE -> packet = connectReader.get();
-                    case REFILL -> {
-                        return ProcessStatus.REFILL;
-                    }
-                    case ERROR -> {
-                        state = State.ERROR;
-                        return ProcessStatus.ERROR;
-                    }
-                }
-                connectReader.reset();
-            }
-            case 2 -> {
-                status = stringReader.process(bb);
-                switch (status) {
-                    case DONE -> {
-                        packet = new PacketString(2, List.of(stringReader.get()));
-                        stringReader.reset();
-                        return ProcessStatus.DONE;
-                    }
-                    case REFILL -> {
-                        return ProcessStatus.REFILL;
-                    }
-
-                    case ERROR -> {
-                        state = State.ERROR;
-                        return ProcessStatus.ERROR;
-                    }
+                return done(connectReader, bb);
+            }
+            case 2, 15, 17 -> {
+                var status = stringReader.process(bb);
+                if (status == ProcessStatus.DONE) {
+                    packet = new PacketString(opCode, List.of(stringReader.get()));
+                    stringReader.reset();
                 }
-                return ProcessStatus.DONE;
+                return status;
             }
-            case 3 -> {
+            case 3, 10 -> {
+                packet = new PacketOpcode(opCode);
+                return ProcessStatus.DONE;
             }
             case 4 -> {
-                status = publicMessageReader.process(bb);
-                switch (status) {
-                    case DONE -> {
-                        packet = publicMessageReader.get();
-                        publicMessageReader.reset();
-                        return ProcessStatus.DONE;
-                    }
-                    case REFILL -> {
-                        return ProcessStatus.REFILL;
-                    }
-                    case ERROR -> {
-                        state = State.ERROR;
-                        return ProcessStatus.ERROR;
-                    }
-                }
-                publicMessageReader.reset();
+                return done(publicMessageReader, bb);
             }
             case 8 -> {
-                status = fusionInitReader.process(bb);
-                switch (status) {
-                    case DONE:
-                        // get packet from Reader
-                        packet = fusionInitReader.get();
-                    case REFILL:
-                        return ProcessStatus.REFILL;
-                    case ERROR:
-                        state = State.ERROR;
-                        return ProcessStatus.ERROR;
+                return done(fusionInitReader, bb);
+            }
+            case 9 -> {
+                return done(fusionInitOkReader, bb);
+            }
+            case 11, 14 -> {
+                var status = socketAddressReader.process(bb);
+                if (status == ProcessStatus.DONE) {
+                    packet = new PacketSocketAddress(opCode, socketAddressReader.get());
+                    socketAddressReader.reset();
                 }
-                fusionInitReader.reset();
-            }
-            case 14 -> {
-                status = socketAddressReader.process(bb);
-                switch (status) {
-                    case DONE:
-                        var sa = socketAddressReader.get();
-                        packet = new PacketSocketAddress(14, sa);
-                    case REFILL:
-                        return ProcessStatus.REFILL;
-                    case ERROR:
-                        state = State.ERROR;
-                        return ProcessStatus.ERROR;
+                return status;
+            }
+            case PacketBatch.OPCODE -> {
+                return done(batchReader, bb);
+            }
+            default -> {
+                return ProcessStatus.ERROR;
+            }
+        }
+    }
+
+    private ProcessStatus done(Reader<? extends Packet> reader, ByteBuffer bb) {
+        var status = reader.process(bb);
+        if (status == ProcessStatus.DONE) {
+            packet = reader.get();
+            reader.reset();
+        }
+        return status;
+    }
+
+    /**
+     * @return true if bytes of the frame being read were consumed, false
+     * between two frames, once an unknown frame is skipped too
+     */
+    public boolean inFrame() {
+        return state != State.OPCODE;
+    }
+
+    /**
+     * Cut-through of public messages : if bb starts with a complete public message
+     * (opcode 4) for another server than the given one, the frame is consumed
+     * after reading only the lengths and the server name, so that it can be
+     * forwarded as it was received. <br>
+     * The convention is that bb is in write-mode before and after the call.
+     *
+     * @param server name of the local server encoded in UTF-8
+     * @return the frame, or null if nothing was consumed and the frame has to be read with process
+     */
+    public PacketView relay(ByteBuffer bb, byte[] server) {
+        if (state != State.OPCODE || bb.position() < Integer.BYTES || bb.getInt(0) != 4) {
+            return null;
+        }
+        int offset = envelope ? Envelope.HEADER_SIZE : Integer.BYTES;
+        int size = envelope ? envelopeSize(bb) : frameSize(bb, offset, bb.position());
+        if (size < 0 || isString(bb, offset, server)) {
+            return null;
+        }
+        return view(bb, offset, size);
+    }
+
+    /**
+     * Copy the frame of strings at the start of bb to a view decoding them
+     * lazily and consume it
+     */
+    private static PacketView view(ByteBuffer bb, int payload, int size) {
+        return new PacketView(take(bb, size), payload, 3);
+    }
+
+    /**
+     * Copy the frame at the start of bb and consume it
+     *
+     * @return the frame in read-mode
+     */
+    private static ByteBuffer take(ByteBuffer bb, int size) {
+        var frame = ByteBuffer.allocate(size);
+        bb.flip();
+        var limit = bb.limit();
+        frame.put(bb.limit(size));
+        bb.limit(limit);
+        bb.compact();
+        return frame.flip();
+    }
+
+    private static boolean isString(ByteBuffer bb, int offset, byte[] bytes) {
+        if (bb.getInt(offset) != bytes.length) {
+            return false;
+        }
+        offset += Integer.BYTES;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bb.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // #################### FAST PATH #################### //
+
+    /**
+     * Size of the enveloped frame at the start of bb if it is complete and its
+     * payload matches its opcode, frames of unknown opcodes are not checked. <br>
+     * The convention is that bb is in write-mode, it is left untouched.
+     *
+     * @return the size of the frame, INCOMPLETE if bytes are missing, FALLBACK
+     * if the frame has to be handled by the resumable readers or MALFORMED if
+     * the payload doesn't match the size
+     */
+    private static int envelopeSize(ByteBuffer bb) {
+        if (bb.position() < Envelope.HEADER_SIZE) {
+            return INCOMPLETE;
+        }
+        int size = bb.getInt(Integer.BYTES);
+        if (size < Envelope.HEADER_SIZE || size > Envelope.MAX_FRAME_SIZE) {
+            return FALLBACK;
+        }
+        if (bb.position() < size) {
+            return INCOMPLETE;
+        }
+        var opCode = bb.getInt(0);
+        if (!isKnown(opCode)) {
+            return size;
+        }
+        var end = frameSize(bb, Envelope.HEADER_SIZE, size);
+        if (end == size || ((opCode == 8 || opCode == 9) && end == size - Integer.BYTES)) {
+            return size;
+        }
+        return MALFORMED;
+    }
+
+    /**
+     * Find the end of the frame at the start of bb with absolute gets only. <br>
+     * The convention is that bb is in write-mode, it is left untouched.
+     *
+     * @param offset start of the payload, after the opcode or the envelope
+     * @param end    bytes after end are not part of the frame
+     * @return the size of the frame, INCOMPLETE if bytes are missing or FALLBACK
+     * if the frame has to be handled by the resumable readers
+     */
+    private static int frameSize(ByteBuffer bb, int offset, int end) {
+        if (end < offset) {
+            return INCOMPLETE;
+        }
+        return switch (bb.getInt(0)) {
+            case 0, 2, 15, 17 -> skipString(bb, offset, end);
+            case 3, 10 -> offset;
+            case 4 -> skipString(bb, skipString(bb, skipString(bb, offset, end), end), end);
+            case 8, 9 -> skipFusionInit(bb, offset, end);
+            case 11, 14 -> skipAddress(bb, offset, end);
+            case PacketBatch.OPCODE -> skipBatch(bb, offset, end);
+            default -> FALLBACK;
+        };
+    }
+
+    private static int skipString(ByteBuffer bb, int offset, int end) {
+        if (offset < 0) {
+            return offset;
+        }
+        if (end - offset < Integer.BYTES) {
+            return INCOMPLETE;
+        }
+        int size = bb.getInt(offset);
+        if (size <= 0 || size > StringReader.BUFFER_SIZE) {
+            return FALLBACK;
+        }
+        offset += Integer.BYTES;
+        return end - offset < size ? INCOMPLETE : offset + size;
+    }
+
+    private static int skipAddress(ByteBuffer bb, int offset, int end) {
+        if (offset < 0) {
+            return offset;
+        }
+        if (end - offset < Integer.BYTES) {
+            return INCOMPLETE;
+        }
+        int size = bb.getInt(offset);
+        if (size != 4 && size != 16) {
+            return FALLBACK;
+        }
+        offset += Integer.BYTES * 2 + size;
+        return end < offset ? INCOMPLETE : offset;
+    }
+
+    private static int skipFusionInit(ByteBuffer bb, int offset, int end) {
+        offset = skipAddress(bb, skipString(bb, offset, end), end);
+        if (offset < 0) {
+            return offset;
+        }
+        if (end - offset < Integer.BYTES) {
+            return INCOMPLETE;
+        }
+        int nbMembers = bb.getInt(offset);
+        if (nbMembers < 0) {
+            return FALLBACK;
+        }
+        offset += Integer.BYTES;
+        for (int i = 0; i < nbMembers && offset >= 0; i++) {
+            offset = skipString(bb, offset, end);
+        }
+        return offset;
+    }
+
+    private static int skipBatch(ByteBuffer bb, int offset, int end) {
+        offset = skipString(bb, offset, end);
+        if (offset < 0) {
+            return offset;
+        }
+        if (end - offset < Integer.BYTES) {
+            return INCOMPLETE;
+        }
+        int strings = bb.getInt(offset) * 2;
+        if (strings < 0) {
+            return FALLBACK;
+        }
+        offset += Integer.BYTES;
+        for (int i = 0; i < strings && offset >= 0; i++) {
+            offset = skipString(bb, offset, end);
+        }
+        return offset;
+    }
+
+    /**
+     * Decode the frame at the start of bb, frameSize must have checked it is complete
+     *
+     * @param offset start of the payload, after the opcode or the envelope
+     * @param size   size of the frame
+     * @return the packet or null if the frame holds an invalid address
+     */
+    private static Packet decode(ByteBuffer bb, int opCode, int offset, int size) {
+        switch (opCode) {
+            case 0, 2, 15, 17 -> {
+                return new PacketString(opCode, List.of(string(bb, offset)));
+            }
+            case 3, 10 -> {
+                return new PacketOpcode(opCode);
+            }
+            case 8, 9 -> {
+                var name = string(bb, offset);
+                offset += Integer.BYTES + bb.getInt(offset);
+                var address = address(bb, offset);
+                offset += Integer.BYTES * 2 + bb.getInt(offset);
+                int nbMembers = bb.getInt(offset);
+                offset += Integer.BYTES;
+                var members = new ArrayList<String>(nbMembers);
+                for (int i = 0; i < nbMembers; i++) {
+                    members.add(string(bb, offset));
+                    offset += Integer.BYTES + bb.getInt(offset);
                 }
-                socketAddressReader.reset();
+                var capabilities = offset < size ? bb.getInt(offset) : 0;
+                return address == null ? null : new PacketFusionInit(opCode, name, address, nbMembers, List.copyOf(members), capabilities);
             }
+            case 11, 14 -> {
+                var address = address(bb, offset);
+                return address == null ? null : new PacketSocketAddress(opCode, address);
+            }
+            default -> throw new AssertionError("opcode " + opCode + " is not handled by the fast path");
+        }
+    }
+
+    private static String string(ByteBuffer bb, int offset) {
+        int size = bb.getInt(offset);
+        offset += Integer.BYTES;
+        if (bb.hasArray()) {
+            return new String(bb.array(), bb.arrayOffset() + offset, size, StandardCharsets.UTF_8);
+        }
+        var bytes = new byte[size];
+        bb.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static InetSocketAddress address(ByteBuffer bb, int offset) {
+        var bytes = new byte[bb.getInt(offset)];
+        offset += Integer.BYTES;
+        bb.get(offset, bytes);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), bb.getInt(offset + bytes.length));
+        } catch (UnknownHostException | IllegalArgumentException e) {
+            return null;
         }
-        return ProcessStatus.DONE;
     }
 
     @Override
     public Packet get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
         return packet;
     }
 
     @Override
     public void reset() {
-        state = State.WAITING;
+        var aborted = state != State.DONE;
+        state = State.OPCODE;
+        if (!aborted) {
+            // readers of a complete packet have already been reset
+            return;
+        }
+        intReader.reset();
+        connectReader.reset();
+        publicMessageReader.reset();
+        fusionInitReader.reset();
+        fusionInitOkReader.reset();
+        socketAddressReader.reset();
+        stringReader.reset();
+        batchReader.reset();
     }
 }
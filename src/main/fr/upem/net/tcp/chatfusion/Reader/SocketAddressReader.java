@@ -1,61 +1,87 @@
 package fr.upem.net.tcp.chatfusion.Reader;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.StringJoiner;
+import java.util.Arrays;
 
+/**
+ * Read a socket address encoded as : <br>
+ * - number of bytes of the ip address (int) : 4 for IPv4, 16 for IPv6 <br>
+ * - ip address : n bytes <br>
+ * - port (int)
+ */
 public class SocketAddressReader implements Reader<SocketAddress> {
-    private enum State {DONE, WAITING, ERROR}
+    private enum State {DONE, LENGTH, ADDRESS, PORT, ERROR}
 
-    private int ipv;
-    private StringJoiner sj = new StringJoiner(".");
-    private int port;
-    private InetSocketAddress value;
+    private State state = State.LENGTH;
     private final IntReader intReader = new IntReader();
-    private State state = State.WAITING;
+    private final ByteBuffer address = ByteBuffer.allocate(16); // write-mode
+    private InetSocketAddress value;
 
     @Override
     public ProcessStatus process(ByteBuffer bb) {
-        if (state == SocketAddressReader.State.DONE || state == SocketAddressReader.State.ERROR) {
+        if (state == State.DONE || state == State.ERROR) {
             throw new IllegalStateException();
         }
-        var intState = intReader.process(bb);
-
-        if (intState.equals(ProcessStatus.DONE)) {
-            ipv = intReader.get();
-        } else if (intState.equals(ProcessStatus.ERROR)) {
-            state = State.ERROR;
+        if (state == State.LENGTH) {
+            var status = intReader.process(bb);
+            if (status != ProcessStatus.DONE) {
+                return status;
+            }
+            int length = intReader.get();
+            intReader.reset();
+            if (length != 4 && length != 16) {
+                state = State.ERROR;
+                return ProcessStatus.ERROR;
+            }
+            address.limit(length);
+            state = State.ADDRESS;
         }
-        intReader.reset();
-
-        for (int i = 0; i < ipv; i++) {
-            var b = (bb.get() & 0xff);
-            sj.add(Integer.toString(b));
+        if (state == State.ADDRESS) {
+            bb.flip();
+            try {
+                while (bb.hasRemaining() && address.hasRemaining()) {
+                    address.put(bb.get());
+                }
+            } finally {
+                bb.compact();
+            }
+            if (address.hasRemaining()) {
+                return ProcessStatus.REFILL;
+            }
+            state = State.PORT;
         }
-        intState = intReader.process(bb);
-
-        if (intState.equals(ProcessStatus.DONE)) {
-            port = intReader.get();
-        } else if (intState.equals(ProcessStatus.ERROR)) {
+        var status = intReader.process(bb);
+        if (status != ProcessStatus.DONE) {
+            return status;
+        }
+        try {
+            var ip = InetAddress.getByAddress(Arrays.copyOf(address.array(), address.limit()));
+            value = new InetSocketAddress(ip, intReader.get());
+        } catch (UnknownHostException | IllegalArgumentException e) {
             state = State.ERROR;
+            return ProcessStatus.ERROR;
         }
-
         state = State.DONE;
-        value = new InetSocketAddress(sj.toString(), port);
-        intReader.reset();
         return ProcessStatus.DONE;
-
     }
 
     @Override
     public SocketAddress get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
         return value;
     }
 
     @Override
     public void reset() {
-        state = State.WAITING;
-        sj = new StringJoiner(".");
+        state = State.LENGTH;
+        intReader.reset();
+        address.clear();
+        value = null;
     }
 }
@@ -9,8 +9,8 @@ public class StringReader implements Reader<String> {
 
     private enum State {DONE, WAITING, ERROR, SIZE}
 
+    static final int BUFFER_SIZE = 1024;
     private State state = State.SIZE;
-    private final int BUFFER_SIZE = 1024;
     private final IntReader intReader = new IntReader();
     private final ByteBuffer internalBuffer = ByteBuffer.allocate(BUFFER_SIZE);
     private final Charset UTF8 = StandardCharsets.UTF_8;
@@ -0,0 +1,118 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Servers of the fusion and the link each one is reached through. <br>
+ * A fusion only joins two groups without any server in common, by a single
+ * link between the two servers involved, so the links form a spanning tree of
+ * the fusion : a message sent on every link but the one it came from reaches
+ * each server once, in as many hops as servers on the path, without going
+ * through a leader. <br>
+ * Lookups are safe from any thread, joins are serialized so that two fusions
+ * accepted at the same time can't both bring the same server.
+ *
+ * @param <S> session of a link to a neighbour server
+ */
+final class RoutingTable<S> {
+
+    // server name -> next hop
+    private final ConcurrentHashMap<String, S> routes = new ConcurrentHashMap<>();
+    private final Set<S> links = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Add a link to a neighbour and the servers behind it, if none of them is
+     * known already
+     *
+     * @param self    name of the local server, which can't be behind a link
+     * @param servers the neighbour and the servers of its group
+     * @return the servers known before the join, or null if the groups have a
+     * server in common, nothing is added then
+     */
+    synchronized List<String> join(String self, S link, Collection<String> servers) {
+        for (var server : servers) {
+            if (server.equals(self) || routes.containsKey(server)) {
+                return null;
+            }
+        }
+        var known = servers();
+        links.add(link);
+        for (var server : servers) {
+            routes.put(server, link);
+        }
+        return known;
+    }
+
+    /**
+     * Add a server announced by a neighbour
+     *
+     * @return true if the server was unknown
+     */
+    synchronized boolean add(String server, S link) {
+        if (!links.contains(link)) {
+            return false;
+        }
+        return routes.putIfAbsent(server, link) == null;
+    }
+
+    /**
+     * Forget a link and every server reached through it
+     *
+     * @return the servers which are not reachable anymore
+     */
+    synchronized List<String> remove(S link) {
+        if (!links.remove(link)) {
+            return List.of();
+        }
+        var lost = new ArrayList<String>();
+        routes.forEach((server, hop) -> {
+            if (hop == link) {
+                lost.add(server);
+            }
+        });
+        lost.forEach(routes::remove);
+        return lost;
+    }
+
+    /**
+     * Forget a server withdrawn by a neighbour, only if it was reached through
+     * this neighbour
+     *
+     * @return true if the server was known through the link
+     */
+    synchronized boolean remove(String server, S link) {
+        return routes.remove(server, link);
+    }
+
+    /**
+     * @return the link leading to the server, or null if it is not part of the fusion
+     */
+    S nextHop(String server) {
+        return routes.get(server);
+    }
+
+    /**
+     * @return true if the session is a link to a neighbour server
+     */
+    boolean isLink(S session) {
+        return links.contains(session);
+    }
+
+    /**
+     * @return a live view of the links to the neighbours
+     */
+    Set<S> links() {
+        return links;
+    }
+
+    /**
+     * @return a snapshot of the servers of the fusion, the local one excepted
+     */
+    List<String> servers() {
+        return List.copyOf(routes.keySet());
+    }
+}
@@ -4,38 +4,123 @@ import fr.upem.net.tcp.chatfusion.Packet.*;
 import fr.upem.net.tcp.chatfusion.Reader.PacketReader;
 import fr.upem.net.tcp.chatfusion.Reader.Reader;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 public class ServerChatFusion {
 
-    private final HashMap<Client, Context> connectedClients = new HashMap<>();
-    private final HashMap<String, Context> connectedServer = new HashMap<>();
+    /**
+     * How connections are served : by a few selector loops, or by a thread per
+     * connection on blocking channels
+     */
+    public enum Engine {REACTOR, THREADS}
+
+    private final SessionRegistry<Session> sessions = new SessionRegistry<>();
+    // bounds the output waiting for slow consumers, see OutputBudget
+    private final OutputBudget outputBudget = new OutputBudget();
+    // servers of the fusion and the links of the spanning tree they form
+    private final RoutingTable<Session> routes = new RoutingTable<>();
+    private final Metrics metrics = new Metrics(outputBudget::pending, () -> routes.links().size());
     private static final int BUFFER_SIZE = 1_024;
+    // frames handled for one connection before giving a turn to the others
+    private static final int FRAMES_PER_READ = 64;
+    // connections listed by STATS with the most bytes waiting to be sent
+    private static final int LARGEST_QUEUES = 5;
+    // output is written at the end of the iteration that queued it, without waiting for OP_WRITE
+    private static final boolean DIRECT_WRITE = Boolean.parseBoolean(System.getProperty("chatfusion.directWrite", "true"));
+    private static final int REACTORS = Integer.getInteger("chatfusion.reactors", Runtime.getRuntime().availableProcessors());
+    private static final Engine ENGINE = Engine.valueOf(System.getProperty("chatfusion.engine", Engine.REACTOR.name()).toUpperCase(Locale.ROOT));
     private static final Logger logger = Logger.getLogger(ServerChatFusion.class.getName());
     private final ServerSocketChannel serverSocketChannel;
     private final Selector selector;
-    private Context leader;
+    private final Engine engine;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    // runs the sessions of the THREADS engine
+    private final ExecutorService executor;
+    // logged clients of the THREADS engine, the reactors keep their own
+    private final Set<BlockingSession> blockingClients = ConcurrentHashMap.newKeySet();
     private final String name;
+    // name in UTF-8 to match the server of relayed messages without decoding them
+    private final byte[] nameBytes;
     private final Thread console;
 
     public ServerChatFusion(int port, String name) throws IOException {
+        this(port, name, REACTORS);
+    }
+
+    public ServerChatFusion(int port, String name, int nbReactors) throws IOException {
+        this(port, name, ENGINE, nbReactors);
+    }
+
+    /**
+     * @param nbReactors number of selector loops of the REACTOR engine, ignored by the THREADS engine
+     */
+    public ServerChatFusion(int port, String name, Engine engine, int nbReactors) throws IOException {
+        if (engine == Engine.REACTOR && nbReactors < 1) {
+            throw new IllegalArgumentException("At least one reactor is needed");
+        }
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.bind(new InetSocketAddress(port));
         // switch server to non-blocking mode
         serverSocketChannel.configureBlocking(false);
         selector = Selector.open();
+        this.engine = engine;
+        if (engine == Engine.REACTOR) {
+            reactors = new Reactor[nbReactors];
+            for (int i = 0; i < nbReactors; i++) {
+                reactors[i] = new Reactor(i);
+            }
+            executor = null;
+        } else {
+            reactors = new Reactor[0];
+            executor = newThreadPerTaskExecutor();
+        }
         this.name = name;
-        // initialize by default the leader being the server itself
-        this.leader = null;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
         this.console = new Thread(this::consoleRun);
+        // the server stops when launch returns, whatever the console is doing
+        this.console.setDaemon(true);
+    }
+
+    /**
+     * Virtual threads when the JVM has them, they are looked up reflectively
+     * so that the server still runs on Java 17, with one platform thread per
+     * connection. The THREADS engine is then much heavier than on Java 21 and
+     * says so.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            logger.warning("Virtual threads are not available on Java " + Runtime.version().feature()
+                    + ", the THREADS engine runs one platform thread per connection : use Java 21 or later, or the REACTOR engine");
+            return Executors.newCachedThreadPool();
+        }
     }
 
     /**
@@ -62,22 +147,40 @@ public class ServerChatFusion {
         synchronized (console) {
             String[] cmd = msg.split(" ");
             switch (cmd[0]) {
-                case "FUSION" -> {
-                    try {
-                        var inetSA = new InetSocketAddress(cmd[1], Integer.parseInt(cmd[2]));
-                        var sc = SocketChannel.open();
-
-                        sc.configureBlocking(false);
-                        sc.connect(inetSA);
+                case "FUSION" -> fusion(new InetSocketAddress(cmd[1], Integer.parseInt(cmd[2])));
+                case "INFO" -> {
+                    System.out.println(sessions.logins());
+                    for (var reactor : reactors) {
+                        System.out.println(reactor.thread.getName() + ": " + reactor.pool);
+                    }
+                    System.out.println("output: " + outputBudget);
+                    System.out.println("fusion: " + routes.servers() + " through " + routes.links().size() + " links");
+                    for (var link : routes.links()) {
+                        var compression = link.compression;
+                        if (compression != null) {
+                            System.out.println(link.sc.socket().getRemoteSocketAddress() + ": " + compression);
+                        }
+                    }
+                }
+                case "STATS" -> {
+                    System.out.println(metrics.report());
+                    System.out.println("largest queues   : " + largestQueues());
+                }
 
-                        var key = sc.register(selector, SelectionKey.OP_CONNECT);
-                        var context = new Context(this, key);
-                        context.requestFusion(inetSA);
-                    } catch (IOException e) {
-                        logger.info("Channel has been closed");
+                case "TRACE" -> {
+                    switch (cmd.length > 1 ? cmd[1] : "") {
+                        case "ON" -> Trace.enable();
+                        case "OFF" -> Trace.disable();
+                        case "DUMP" -> Trace.dump(System.out);
+                        default -> System.out.println("Usage : TRACE ON|OFF|DUMP");
+                    }
+                }
+                case "KEYS" -> {
+                    // the keys of a selector can only be walked safely from its own thread
+                    for (var reactor : reactors) {
+                        reactor.execute(() -> Helpers.printKeys(reactor.selector));
                     }
                 }
-                case "INFO" -> System.out.println(connectedClients.keySet());
 
                 default -> System.out.println("Unknown command typed");
             }
@@ -86,98 +189,270 @@ public class ServerChatFusion {
 
 
     /**
-     * @param login String
-     * @return boolean
+     * Ask the server at the given address to fuse its group with ours, through
+     * a new connection which becomes a link of the tree if it accepts
+     */
+    void fusion(InetSocketAddress inetSA) {
+        if (engine == Engine.THREADS) {
+            executor.execute(() -> {
+                try {
+                    var session = new BlockingSession(SocketChannel.open(inetSA));
+                    session.link();
+                    session.requestFusion(inetSA);
+                    session.run();
+                } catch (IOException e) {
+                    logger.info("Channel has been closed");
+                }
+            });
+            return;
+        }
+        var reactor = nextReactor();
+        // channels can only be registered safely from the thread owning the selector
+        reactor.execute(() -> {
+            try {
+                var sc = SocketChannel.open();
+
+                sc.configureBlocking(false);
+                sc.connect(inetSA);
+
+                var key = sc.register(reactor.selector, SelectionKey.OP_CONNECT);
+                var context = new Context(reactor, key);
+                key.attach(context);
+                context.link();
+                context.requestFusion(inetSA);
+            } catch (IOException e) {
+                logger.info("Channel has been closed");
+            }
+        });
+    }
+
+    /**
+     * The histogram of the queue depths tells how deep the queues are, not
+     * which connections they belong to. The sessions of the reactors are
+     * measured by their own thread, a reactor too busy to answer is left out.
+     *
+     * @return the LARGEST_QUEUES connections with the most bytes waiting to be sent
+     */
+    private List<QueueDepth> largestQueues() throws InterruptedException {
+        var depths = new ArrayList<QueueDepth>();
+        if (engine == Engine.THREADS) {
+            for (var client : blockingClients) {
+                depths.add(client.queueDepth());
+            }
+            for (var link : routes.links()) {
+                depths.add(link.queueDepth());
+            }
+        }
+        var futures = new ArrayList<CompletableFuture<List<QueueDepth>>>();
+        for (var reactor : reactors) {
+            var future = new CompletableFuture<List<QueueDepth>>();
+            reactor.execute(() -> future.complete(reactor.largestQueues()));
+            futures.add(future);
+        }
+        for (var future : futures) {
+            try {
+                depths.addAll(future.get(1, TimeUnit.SECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                // leave the connections of this reactor out
+            }
+        }
+        return top(depths);
+    }
+
+    private static List<QueueDepth> top(List<QueueDepth> depths) {
+        return depths.stream()
+                .filter(depth -> depth.bytes() > 0)
+                .sorted(Comparator.comparingLong(QueueDepth::bytes).reversed())
+                .limit(LARGEST_QUEUES)
+                .toList();
+    }
+
+    /**
+     * Bytes waiting to be sent to a connection, in memory and in its SpillFile
+     */
+    private record QueueDepth(String session, long bytes) {
+        @Override
+        public String toString() {
+            return session + " " + bytes + " B";
+        }
+    }
+
+    /**
+     * @return the other servers of the fusion
+     */
+    List<String> fusedServers() {
+        return routes.servers();
+    }
+
+    /**
+     * @return the metrics of the server, as published through JMX
+     */
+    MetricsMBean metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the buffer pools of the reactors, empty for the THREADS engine
      */
-    private boolean isConnect(String login) {
-        for (var client : connectedClients.keySet())
-            if (client.checkIsLogin(login))
-                return true;
-        return false;
+    List<BufferPool> bufferPools() {
+        return Arrays.stream(reactors).map(reactor -> reactor.pool).toList();
     }
 
+    /**
+     * The selector of launch() only accepts connections, every accepted channel
+     * is then handed over to one of the reactors in a round-robin fashion
+     */
     public void launch() throws IOException {
+        if (engine == Engine.THREADS) {
+            launchThreads();
+            return;
+        }
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        for (var reactor : reactors) {
+            reactor.thread.start();
+        }
         this.console.start();
+        var mbean = registerMetrics();
 
-        while (!Thread.interrupted()) {
-            Helpers.printKeys(selector);
-            try {
-                selector.select(this::treatKey);
-            } catch (UncheckedIOException tunneled) {
-                throw tunneled.getCause();
+        try {
+            while (!Thread.interrupted()) {
+                try {
+                    selector.select(this::treatKey);
+                } catch (UncheckedIOException tunneled) {
+                    throw tunneled.getCause();
+                }
+            }
+        } finally {
+            for (var reactor : reactors) {
+                reactor.thread.interrupt();
+            }
+            serverSocketChannel.close();
+            selector.close();
+            unregisterMetrics(mbean);
+        }
+    }
+
+    /**
+     * The THREADS engine accepts on the calling thread and gives each connection
+     * its own threads, until the calling thread is interrupted
+     */
+    private void launchThreads() throws IOException {
+        serverSocketChannel.configureBlocking(true);
+        this.console.start();
+        var mbean = registerMetrics();
+
+        try {
+            while (!Thread.interrupted()) {
+                var sc = serverSocketChannel.accept();
+                Trace.record(Trace.Event.ACCEPT, sc, 0);
+                var session = new BlockingSession(sc);
+                executor.execute(session::run);
             }
+        } catch (ClosedByInterruptException e) {
+            logger.info("Server interrupted");
+        } finally {
+            // interrupting the threads closes their channels
+            executor.shutdownNow();
+            serverSocketChannel.close();
+            selector.close();
+            unregisterMetrics(mbean);
+        }
+    }
+
+    /**
+     * Expose the metrics through JMX, under the name of the server
+     *
+     * @return the name of the MBean, or null if it couldn't be registered
+     */
+    private ObjectName registerMetrics() {
+        try {
+            var mbean = new ObjectName("fr.upem.net.tcp.chatfusion:type=ServerChatFusion,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbean);
+            return mbean;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Metrics are not available through JMX", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMetrics(ObjectName mbean) {
+        if (mbean == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+        } catch (JMException e) {
+            // already gone
         }
     }
 
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
-                doAccept(key);
+                doAccept();
             }
         } catch (IOException ioe) {
             throw new UncheckedIOException(ioe);
         }
-        try {
-            if (key.isValid() && key.isConnectable()) {
-                ((Context) key.attachment()).doConnect();
-            }
-            if (key.isValid() && key.isWritable()) {
-                ((Context) key.attachment()).doWrite();
-            }
-            if (key.isValid() && key.isReadable()) {
-                ((Context) key.attachment()).doRead();
-            }
-        } catch (IOException e) {
-            logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-            silentlyClose(key);
-        }
     }
 
-    private void doAccept(SelectionKey key) throws IOException {
+    private void doAccept() throws IOException {
         SocketChannel sc = serverSocketChannel.accept();
         if (sc == null) {
             logger.warning("liar accept");
             return;
         }
         sc.configureBlocking(false);
-        var clientKey = sc.register(selector, SelectionKey.OP_READ);
-        clientKey.attach(new Context(this, clientKey));
+        Trace.record(Trace.Event.ACCEPT, sc, 0);
+        var reactor = nextReactor();
+        reactor.execute(() -> reactor.register(sc));
     }
 
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = key.channel();
-        try {
-            sc.close();
-        } catch (IOException e) {
-            // ignore exception
-        }
+    private Reactor nextReactor() {
+        return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
     }
 
     /**
-     * Add a message to all connected clients queue
+     * Same as broadcastClient for several messages, handed over to each reactor at once
      *
-     * @param packet Message
+     * @param packets Messages
      */
-    private void broadcastClient(Packet packet) {
-        for (var value : connectedClients.values()) {
-            value.queueMessage(packet);
+    private void broadcastClient(List<Packet> packets) {
+        var frames = packets.stream().map(PacketFrame::of).toList();
+        for (var reactor : reactors) {
+            reactor.execute(() -> frames.forEach(reactor::broadcastClient));
+        }
+        for (var client : blockingClients) {
+            frames.forEach(client::send);
         }
     }
 
     /**
-     * Add a message to all connected server queue
+     * Add a message to all connected clients queue, each reactor fills the
+     * queues of the clients it owns, the sessions of the THREADS engine are
+     * filled by the caller. <br>
+     * The packet is encoded once and the same bytes are shared by every recipient.
      *
      * @param packet Message
      */
-    private void broadcastServer(Packet packet) {
-        connectedServer.forEach((key, value) -> value.queueMessage(packet));
+    private void broadcastClient(Packet packet) {
+        var frame = PacketFrame.of(packet);
+        for (var reactor : reactors) {
+            reactor.execute(() -> reactor.broadcastClient(frame));
+        }
+        for (var client : blockingClients) {
+            client.send(frame);
+        }
     }
 
-    private List<String> getListConnectedServer() {
-        return connectedServer.keySet().stream().toList();
+    /**
+     * @return the server of a fusion request and the servers of its group
+     */
+    private static List<String> members(PacketFusionInit init) {
+        var members = new ArrayList<>(init.components());
+        members.add(init.name());
+        return members;
     }
 
     public static void main(String[] args) throws NumberFormatException, IOException {
@@ -193,304 +468,1234 @@ public class ServerChatFusion {
     }
 
 
-    // #################### CLIENT #################### //
-
-    private record Client(String login) {
-        private boolean checkIsLogin(String login) {
-            return this.login.equals(login);
-        }
-
-        @Override
-        public String toString() {
-            return login;
-        }
-    }
-
-
-    // #################### CONTEXT #################### //
-
-    private class Context {
-        private final SelectionKey key;
-        private final SocketChannel sc;
-        private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ArrayDeque<Packet> queue = new ArrayDeque<>();
-        private final PacketReader packetReader = new PacketReader();
-        private final ServerChatFusion server;
-        private boolean closed = false;
-        private Packet packet;
+    // #################### REACTOR #################### //
 
-        private Context(ServerChatFusion server, SelectionKey key) {
-            this.key = key;
-            this.sc = (SocketChannel) key.channel();
-            this.server = server;
-        }
+    /**
+     * A selector loop running on its own thread. <br>
+     * Every context is owned by exactly one reactor and must only be touched by
+     * its thread, other threads hand work over with execute()
+     */
+    private class Reactor {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final HashSet<Context> clients = new HashSet<>();
+        // clients as of the last change, broadcasts walk this copy so that a
+        // client closed by the broadcast itself can leave the set meanwhile
+        private Context[] recipients = new Context[0];
+        private boolean recipientsChanged = false;
+        private final BufferPool pool = new BufferPool(BUFFER_SIZE);
+        // contexts which used their whole frame budget with complete frames still in bufferIn
+        private final ArrayDeque<Context> pendingInput = new ArrayDeque<>();
+        // contexts which queued output during the current iteration
+        private final ArrayDeque<Context> dirty = new ArrayDeque<>();
 
-        @Override
-        public String toString() {
-            try {
-                return "[SocketAddress: " + sc.getRemoteAddress().toString() + ", leader: " + leader + "]";
-            } catch (IOException e) {
-                return "";
-            }
+        private Reactor(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, "reactor-" + index);
         }
 
         /**
-         * Process the content of bufferIn. <br>
-         * The convention is that bufferIn is in write-mode
-         * before the call to process and after the call
+         * Run the task on the thread of this reactor, directly if the caller
+         * already is this thread
          */
-        private void processIn() {
-            for (; ; ) {
-                Reader.ProcessStatus status = packetReader.process(bufferIn);
+        private void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
 
-                switch (status) {
-                    case DONE -> {
-                        logger.info("DONE");
-                        packet = packetReader.get();
-                        switch (packet.opCodeGet()) {
-                            case 0, 1 -> {
-                                connection();
-                                return;
-                            }
-                            case 4 -> {
-                                publicMessage();
-                                return;
-                            }
-                            case 8 -> {
-                                initFusion();
-                                return;
-                            }
-                            case 14 -> {
-                                fusionMerge();
-                                return;
-                            }
-                        }
-                    }
-                    case REFILL -> {
-                        logger.info("REFILL");
-                        return;
+        private void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    // frames already received must not wait for a new readable event
+                    int selected;
+                    if (pendingInput.isEmpty()) {
+                        selected = selector.select(this::treatKey);
+                    } else {
+                        selected = selector.selectNow(this::treatKey);
                     }
-
-                    case ERROR -> {
-                        logger.info("ERROR");
-                        silentlyClose();
+                    Trace.record(Trace.Event.SELECT, this, selected);
+                    var start = System.nanoTime();
+                    runTasks();
+                    processPendingInput();
+                    flushDirty();
+                    metrics.loopTime.record(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Reactor stopped due to IOException", e);
+            } finally {
+                for (var key : selector.keys()) {
+                    if (key.attachment() instanceof Context context) {
+                        context.silentlyClose();
                     }
                 }
-                packetReader.reset();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore exception
+                }
             }
         }
 
-        private void requestFusion(SocketAddress sa) {
-            var packetFusionInit = new PacketFusionInit(8, name, sa, connectedServer.size(), getListConnectedServer());
-            queueMessage(packetFusionInit);
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // a task failing must not stop the connections of the reactor
+                    logger.log(Level.SEVERE, "Task of " + thread.getName() + " failed", e);
+                }
+            }
         }
 
-        private void fusionMerge() {
-            try {
-                SocketAddress sa = (SocketAddress) packet.components().get(0);
-                var sc = SocketChannel.open();
-                sc.bind(sa).configureBlocking(false);
-                var key = sc.register(selector, SelectionKey.OP_CONNECT);
-                leader = new Context(this.server, key);
-                var packet = new PacketString(15, name);
-                leader.queueMessage(packet);
-            } catch (IOException e) {
-                logger.info("Channel has been closed");
+        /**
+         * Give one more frame budget to every context left with complete frames,
+         * contexts running out of budget again are queued for the next iteration
+         */
+        private void processPendingInput() {
+            for (int i = pendingInput.size(); i > 0; i--) {
+                var context = pendingInput.poll();
+                try {
+                    context.resumeIn();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Connection closed due to an unexpected exception", e);
+                    context.silentlyClose();
+                }
             }
-
         }
 
         /**
-         *
+         * Write once everything queued during the iteration, so that a burst of
+         * messages for a context costs a single gathering write and a single
+         * update of its interestOps
          */
-        private void initFusion() {
-            var packetFusion = (PacketFusionInit) packet;
-            // Test if actual server == leader
-            if (leader == null) {
-                // Check that both servers doesn't have a similar server linked to themselves
-                if (!hasServerInCommon(packetFusion.components())) {
-                    try {
-                        var connectedServerName = getListConnectedServer();
-                        var socketAddress = sc.getLocalAddress();
-                        var packetFusionInit = new PacketFusionInit(9, name, socketAddress, connectedServer.size(), connectedServerName);
-                        queueMessage(packetFusionInit);
-
-                        switchLeaderName(packetFusion.name());
+        private void flushDirty() {
+            Context context;
+            while ((context = dirty.poll()) != null) {
+                try {
+                    context.flush();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Connection closed due to an unexpected exception", e);
+                    context.silentlyClose();
+                }
+            }
+        }
 
-                        fusion(packetFusion);
-                    } catch (IOException e) {
-                        logger.info("fail socketAddress");
-                    }
-                } else {
-                    try {
-                        var leaderAdr = leader.sc.getRemoteAddress();
-                        var packetToReturn = new PacketSocketAddress(11, leaderAdr);
-                        queueMessage(packetToReturn);
-                    } catch (IOException e) {
-                        logger.info("Error");
-                    }
+        private void treatKey(SelectionKey key) {
+            var context = (Context) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    context.doConnect();
                 }
+                if (key.isValid() && key.isWritable()) {
+                    context.doWrite();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    context.doRead();
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+                context.silentlyClose();
+            } catch (RuntimeException e) {
+                // one bad connection must not stop the others
+                logger.log(Level.SEVERE, "Connection closed due to an unexpected exception", e);
+                context.silentlyClose();
             }
         }
 
-        private void fusion(PacketFusionInit packet) {
-            if (leader != null) {
+        private void register(SocketChannel sc) {
+            try {
+                var key = sc.register(selector, SelectionKey.OP_READ);
+                key.attach(new Context(this, key));
+            } catch (IOException e) {
+                logger.info("Channel has been closed before registration");
                 try {
-                    var packetChangeLeader = new PacketSocketAddress(14, leader.sc.getRemoteAddress());
-                    queueMessage(packetChangeLeader);
-                } catch (IOException e) {
-                    logger.info("Channel was closed");
+                    sc.close();
+                } catch (IOException ignored) {
+                    // ignore exception
                 }
-            } else {
-                connectedServer.put(packet.name(), this);
             }
         }
 
-        private void switchLeaderName(String serverName) {
-            if ((name.compareTo(serverName) > 0))
-                leader = this;
-            else
-                leader = null;
+        private void addClient(Context context) {
+            recipientsChanged |= clients.add(context);
         }
 
-        private boolean hasServerInCommon(List<String> requestServers) {
-            for (var serv : requestServers) {
-                var entrySet = connectedServer.entrySet();
-                for (var server : entrySet)
-                    if (server.getKey().equals(serv)) return true;
-            }
-            return false;
+        private void removeClient(Context context) {
+            recipientsChanged |= clients.remove(context);
         }
 
         /**
-         *
+         * @return the LARGEST_QUEUES contexts of this reactor with the most bytes waiting to be sent
          */
-        private void publicMessage() {
-            var nameServer = packet.components().get(0);
-            String login = (String) packet.components().get(1);
-//            var message = packet.components().get(2);
-
-            if (nameServer.equals(name)) {
-                if (isConnect(login)) {
-                    broadcastClient(packet);
-                } else {
-                    logger.warning("Client " + login + " isn't connected to the server");
-                }
-            } else {
-                // Test if server == leader
-                if (leader == null) {
-                    // Yes, send to connected server
-                    connectedServer.forEach((key, value) -> {
-                        if (!key.equals(name)) {
-                            value.queueMessage(packet);
-                        }
-                    });
-                } else {
-                    // No, send to leader
-                    leader.queueMessage(packet);
+        private List<QueueDepth> largestQueues() {
+            var depths = new ArrayList<QueueDepth>();
+            for (var key : selector.keys()) {
+                if (key.attachment() instanceof Context context) {
+                    depths.add(context.queueDepth());
                 }
             }
+            return top(depths);
         }
 
         /**
-         *
+         * A slow consumer closed by queueMessage leaves clients during the loop,
+         * so the loop walks recipients, rebuilt only when clients changed
          */
-        public void connection() {
-            String login = (String) packet.components().get(0);
-            logger.info(login);
-
-            if (isConnect(login)) {
-                var packetRefusal = new PacketString(3, new ArrayList<>());
-                queueMessage(packetRefusal);
-            } else {
-                connectedClients.put(new Client(login), this);
-                connectionAccepted();
+        private void broadcastClient(Packet packet) {
+            if (recipientsChanged) {
+                recipients = clients.toArray(new Context[0]);
+                recipientsChanged = false;
+            }
+            for (var context : recipients) {
+                context.queueMessage(packet);
             }
         }
+    }
 
-        private void connectionAccepted() {
-            var packetAccepted = new PacketString(2, name);
-            queueMessage(packetAccepted);
+
+    // #################### SESSION #################### //
+
+    /**
+     * Handling of the packets received by a connection, shared by the engines :
+     * a Context for the reactors, a BlockingSession for the thread-per-connection
+     * engine. <br>
+     * The handlers run on the thread owning the connection, only send can be
+     * called from any thread.
+     */
+    private abstract class Session {
+        final SocketChannel sc;
+        Packet packet;
+        String login;
+        // set once the link negotiated compression, read by INFO from the console
+        volatile LinkCompression compression;
+
+        Session(SocketChannel sc) {
+            this.sc = sc;
         }
 
         /**
-         * Add a message to the message queue, tries to fill bufferOut and updateInterestOps
+         * Add a message to the outbound queue, from the thread owning the session
          *
          * @param packet Message
          */
-        public void queueMessage(Packet packet) {
-            queue.add(packet);
-            processOut();
-            updateInterestOps();
-        }
+        abstract void queueMessage(Packet packet);
 
         /**
-         * Try to fill bufferOut from the message queue
+         * Add a message to the outbound queue from any thread
+         *
+         * @param packet Message
          */
-        private void processOut() {
-            var previewMsg = queue.peek();
-            while (!queue.isEmpty() && bufferOut.remaining() >= previewMsg.size()) {
-                var fullMsg = queue.poll();
-                if (fullMsg == null) return;
-                bufferOut.put(fullMsg.generateByteBuffer().flip());
-            }
-        }
+        abstract void send(Packet packet);
+
+        abstract void silentlyClose();
 
         /**
-         * Update the interestOps of the key looking only at values of the boolean
-         * closed and of both ByteBuffers. <br>
-         * The convention is that both buffers are in write-mode before the call to
-         * updateInterestOps and after the call. <br>
-         * It is assumed that process has been called just before updateInterestOps.
+         * Mark the session as a link to another server : its output past a
+         * threshold goes to a SpillFile instead of being dropped
          */
-        private void updateInterestOps() {
-            var ops = 0;
-            if (bufferIn.hasRemaining() && !closed) ops |= SelectionKey.OP_READ;
+        abstract void link();
 
-            if (bufferOut.position() != 0) ops |= SelectionKey.OP_WRITE;
+        /**
+         * From now on the output is compressed, and so is the input after the
+         * frame being handled, see LinkCompression
+         */
+        abstract void compress();
 
-            if (ops == 0) silentlyClose();
-            else key.interestOps(ops);
+        /**
+         * Keep the other threads from queueing output until unlockOutput. The
+         * output of a Context is only queued by the thread of its reactor, there
+         * is nothing to do.
+         */
+        void lockOutput() {
         }
 
-        private void silentlyClose() {
-            try {
-                sc.close();
-            } catch (IOException e) {
-                // ignore exception
-            }
+        void unlockOutput() {
+        }
+
+        /**
+         * Bytes waiting to be sent, from the thread owning the session
+         */
+        abstract QueueDepth queueDepth();
+
+        /**
+         * @return login of the client, or link, followed by the address of the peer
+         */
+        String describe() {
+            var peer = sc.socket().getRemoteSocketAddress();
+            return (login != null ? login : routes.isLink(this) ? "link" : "-") + "@" + peer;
+        }
+
+        /**
+         * The client of the session is now registered and receives the broadcasts
+         */
+        abstract void loggedIn();
+
+        abstract void loggedOut();
+
+        /**
+         * Handle the packet just read
+         */
+        void handle() {
+            switch (packet.opCodeGet()) {
+                case 0, 1 -> connection();
+                case 4 -> publicMessage();
+                case 8 -> initFusion();
+                case 9 -> fusionAccepted();
+                case 10 -> fusionRefused();
+                case 15 -> merge();
+                case 17 -> withdraw();
+                case PacketBatch.OPCODE -> batch();
+            }
+        }
+
+        /**
+         * Forget the login and the links of a closed session
+         */
+        void unregister() {
+            if (login != null) {
+                sessions.unregister(login, this);
+                loggedOut();
+                login = null;
+            }
+            var lost = routes.remove(this);
+            if (!lost.isEmpty()) {
+                logger.info("Link closed, servers out of reach : " + lost);
+                // the rest of the tree forgets them too, so that they can fuse again elsewhere
+                for (var server : lost) {
+                    flood(new PacketString(17, server));
+                }
+            }
+        }
+
+        void requestFusion(SocketAddress sa) {
+            // one snapshot, a join or a withdrawal in between would make the count lie about the list
+            var known = routes.servers();
+            var packetFusionInit = new PacketFusionInit(8, name, sa, known.size(), known, LinkCompression.capabilities());
+            metrics.fusionRequests.increment();
+            queueMessage(packetFusionInit);
+        }
+
+        /**
+         * Another server asks to fuse its group with ours through this
+         * connection, accepted if the groups have no server in common
+         */
+        private void initFusion() {
+            var init = (PacketFusionInit) packet;
+            SocketAddress address;
+            try {
+                address = sc.getLocalAddress();
+            } catch (IOException e) {
+                logger.info("Channel has been closed");
+                return;
+            }
+            // once joined, other sessions flood the link : nothing may be queued
+            // before the answer, nor between the answer and the compression
+            lockOutput();
+            try {
+                var known = routes.join(name, this, members(init));
+                if (known == null) {
+                    logger.info("Fusion with " + init.name() + " refused, a server is in both groups");
+                    queueMessage(new PacketOpcode(10));
+                    return;
+                }
+                link();
+                var compress = (init.capabilities() & LinkCompression.capabilities() & LinkCompression.DEFLATE) != 0;
+                queueMessage(new PacketFusionInit(9, name, address, known.size(), known, compress ? LinkCompression.DEFLATE : 0));
+                if (compress) {
+                    // the other server compresses once it receives our answer, it sends nothing before
+                    compress();
+                }
+            } finally {
+                unlockOutput();
+            }
+            joined(init);
+        }
+
+        /**
+         * The server we asked for a fusion accepted it
+         */
+        private void fusionAccepted() {
+            var init = (PacketFusionInit) packet;
+            if (routes.isLink(this)) {
+                return;
+            }
+            // the output is compressed before the join publishes the link to the other sessions
+            if ((init.capabilities() & LinkCompression.capabilities() & LinkCompression.DEFLATE) != 0) {
+                compress();
+            }
+            // a fusion accepted meanwhile may have brought a server of its group
+            if (routes.join(name, this, members(init)) == null) {
+                logger.info("Fusion with " + init.name() + " abandoned, a server is in both groups");
+                silentlyClose();
+                return;
+            }
+            joined(init);
+        }
+
+        private void fusionRefused() {
+            logger.info("Fusion refused by " + sc);
+            silentlyClose();
+        }
+
+        /**
+         * A neighbour announces a server which joined the fusion behind it,
+         * the announce goes on along the tree
+         */
+        private void merge() {
+            var server = (String) packet.components().get(0);
+            if (!server.equals(name) && routes.add(server, this)) {
+                announce(server);
+            }
+        }
+
+        /**
+         * A neighbour lost the link leading to a server, the withdrawal goes on
+         * along the tree if the server was reached through this neighbour
+         */
+        private void withdraw() {
+            var server = (String) packet.components().get(0);
+            if (routes.remove(server, this)) {
+                logger.info("Server " + server + " left the fusion");
+                flood(packet);
+            }
+        }
+
+        /**
+         * This session became a link of the tree, the servers of the other group
+         * are announced to the rest of ours
+         */
+        private void joined(PacketFusionInit init) {
+            for (var server : members(init)) {
+                announce(server);
+            }
+            logger.info("Fusion with " + init.name() + ", servers of the fusion : " + routes.servers());
+        }
+
+        private void announce(String server) {
+            flood(new PacketString(15, server));
+        }
+
+        /**
+         * Send a packet on every link of the tree but this session, the packet is
+         * encoded once for all of them
+         */
+        private void flood(Packet packet) {
+            var frame = PacketFrame.of(packet);
+            for (var link : routes.links()) {
+                if (link != this) {
+                    link.send(frame);
+                }
+            }
+        }
+
+        /**
+         * A message of a local client goes to the local clients and to every
+         * link, a message of another server is forwarded
+         */
+        private void publicMessage() {
+            var nameServer = (String) packet.components().get(0);
+            String login = (String) packet.components().get(1);
+
+            if (!nameServer.equals(name)) {
+                forward(packet, nameServer);
+            } else if (sessions.isRegistered(login, this)) {
+                broadcastClient(packet);
+                flood(packet);
+            } else {
+                logger.warning("Client " + login + " isn't connected to the server with this connection");
+            }
+        }
+
+        /**
+         * Cut-through of a public message for another server : the frame at the
+         * start of bufferIn is forwarded as it was received, only its server name
+         * is read
+         *
+         * @return true if a frame has been relayed
+         */
+        boolean relay(PacketReader packetReader, ByteBuffer bufferIn) {
+            var frame = packetReader.relay(bufferIn, nameBytes);
+            if (frame == null) {
+                return false;
+            }
+            Trace.record(Trace.Event.FRAME, sc, frame.opCodeGet());
+            metrics.packetIn(frame.opCodeGet(), frame.size());
+            metrics.relayedFrames.increment();
+            forward(frame, frame.components().get(0));
+            return true;
+        }
+
+        /**
+         * Public messages of another server packed by a neighbour : each one is
+         * delivered to the local clients, the batch goes on along the tree as it is
+         */
+        private void batch() {
+            var batch = (PacketBatch) packet;
+            var origin = batch.server();
+            if (!accepts(origin)) {
+                return;
+            }
+            metrics.forwardedFrames.add(batch.count());
+            var messages = new ArrayList<Packet>(batch.count());
+            for (int i = 0; i < batch.count(); i++) {
+                messages.add(batch.message(i));
+            }
+            broadcastClient(messages);
+            flood(batch);
+        }
+
+        /**
+         * @return true if messages of the origin server are expected from this session
+         */
+        private boolean accepts(String origin) {
+            if (!routes.isLink(this)) {
+                logger.warning("Message of server " + origin + " sent by a client");
+                return false;
+            }
+            // a copy coming from another direction went around a loop of fusions accepted at the same time
+            return routes.nextHop(origin) == this || routes.add(origin, this);
+        }
+
+        /**
+         * Deliver a public message of another server to the local clients and
+         * send it on along the tree, away from the link it came from
+         *
+         * @param packet Message
+         * @param origin server of the sender
+         */
+        private void forward(Packet packet, String origin) {
+            if (!accepts(origin)) {
+                return;
+            }
+            metrics.forwardedFrames.increment();
+            broadcastClient(packet);
+            flood(packet);
         }
 
         /**
-         * Performs the read action on sc
-         * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * doRead and after the call
+         *
+         */
+        private void connection() {
+            String login = (String) packet.components().get(0);
+            logger.info(login);
+
+            // the registration is atomic when two connections log the same name concurrently
+            if (this.login != null || !sessions.register(login, this)) {
+                var packetRefusal = new PacketString(3, new ArrayList<>());
+                queueMessage(packetRefusal);
+            } else {
+                this.login = login;
+                loggedIn();
+                connectionAccepted();
+            }
+        }
+
+        private void connectionAccepted() {
+            var packetAccepted = new PacketString(2, name);
+            queueMessage(packetAccepted);
+        }
+    }
+
+
+    // #################### BLOCKING SESSION #################### //
+
+    /**
+     * Connection of the THREADS engine, served by one thread on a blocking
+     * channel which reads and handles the packets, a virtual thread when the
+     * JVM has them. <br>
+     * Output is added to pending from any thread under the lock. The thread
+     * that finds nobody writing becomes the writer : it swaps pending and
+     * writing under the lock then writes without holding it, until pending is
+     * empty. The other threads only queue their frames, so while a slow peer
+     * blocks its writer, the frames sent to it meet the limits of the budget.
+     */
+    private class BlockingSession extends Session {
+        private final ReentrantLock lock = new ReentrantLock();
+        // guarded by lock
+        private FrameQueue pending = new FrameQueue(outputBudget);
+        // only touched by the writer, or under the lock while there is none
+        private FrameQueue writing = new FrameQueue(outputBudget);
+        // bytes of writing left to write, published by the writer for STATS
+        private volatile long writingBytes;
+        // guarded by lock
+        private boolean isLink = false;
+        private boolean closed = false;
+        // a thread is writing the output
+        private boolean writer = false;
+        private LinkBatcher batcher;
+        // set when a frame did not fit in the output
+        private boolean overflow = false;
+        // only touched by the reader, compressedIn once the link is compressed
+        private ByteBuffer bufferIn;
+        private ByteBuffer compressedIn;
+
+        private BlockingSession(SocketChannel sc) {
+            super(sc);
+        }
+
+        /**
+         * Read on the calling thread until the connection closes
+         */
+        private void run() {
+            bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
+            var packetReader = new PacketReader();
+            long frameBytes = 0;
+            // frames handled since the last pause
+            int frames = 0;
+            try {
+                while (true) {
+                    var read = sc.read(compressedIn != null ? compressedIn : bufferIn);
+                    Trace.record(Trace.Event.READ, sc, read);
+                    if (read == -1) {
+                        return;
+                    }
+                    var start = System.nanoTime();
+                    while (true) {
+                        if (relay(packetReader, bufferIn)) {
+                            continue;
+                        }
+                        var available = bufferIn.position();
+                        var status = packetReader.process(bufferIn);
+                        frameBytes += available - bufferIn.position();
+                        if (status == Reader.ProcessStatus.REFILL) {
+                            if (inflate()) {
+                                continue;
+                            }
+                            break;
+                        }
+                        if (status == Reader.ProcessStatus.ERROR) {
+                            logger.info("Malformed frame, closing " + sc);
+                            return;
+                        }
+                        packet = packetReader.get();
+                        Trace.record(Trace.Event.FRAME, sc, packet.opCodeGet());
+                        metrics.packetIn(packet.opCodeGet(), frameBytes);
+                        frameBytes = 0;
+                        frames++;
+                        handle();
+                        packetReader.reset();
+                    }
+                    metrics.processingTime.record(System.nanoTime() - start);
+                    if (frames >= FRAMES_PER_READ) {
+                        frames = 0;
+                        pause();
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+            } finally {
+                silentlyClose();
+            }
+        }
+
+        /**
+         * A virtual thread is never preempted, a reader which always finds bytes
+         * and writes its output itself keeps its carrier. Thread.yield is not
+         * enough : the carrier runs the threads it queued itself first, and the
+         * threads of new connections, queued by the accepting thread, would wait
+         * as long as the readers are busy. The timed park makes the reader wake
+         * up through the same queue as them.
+         */
+        private static void pause() {
+            LockSupport.parkNanos(1);
+        }
+
+        /**
+         * Decompress into bufferIn what was received on a compressed link
+         *
+         * @return true if there may be more to process in bufferIn
+         */
+        private boolean inflate() throws IOException {
+            if (compressedIn == null) {
+                return false;
+            }
+            try {
+                return compression.inflate(compressedIn, bufferIn);
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed compressed input", e);
+            }
+        }
+
+        /**
+         * Write the queued output on the calling thread, unless another thread
+         * is already writing, it then writes these frames too. A thread holding
+         * the lock through lockOutput writes when it releases it.
+         */
+        private void write() {
+            if (lock.isHeldByCurrentThread()) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (writer || closed) {
+                    return;
+                }
+                writer = true;
+            } finally {
+                lock.unlock();
+            }
+            boolean slow;
+            try {
+                while (true) {
+                    lock.lock();
+                    try {
+                        // the messages batched and compressed while the previous frames were written
+                        drainBatches();
+                        if (compression != null && compression.hasOutput() && !pending.add(compression.flush())) {
+                            overflow = true;
+                        }
+                        if (closed || overflow || pending.isEmpty()) {
+                            writer = false;
+                            if (closed) {
+                                writing.clear();
+                            }
+                            slow = overflow;
+                            break;
+                        }
+                        metrics.queueDepth.record(pending.bytes() + pending.spilled());
+                        var drained = writing;
+                        writing = pending;
+                        pending = drained;
+                        if (isLink && !pending.spills()) {
+                            pending.spillOver(new SpillFile());
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    // a blocking channel writes everything it is given
+                    while (!writing.isEmpty()) {
+                        writingBytes = writing.bytes() + writing.spilled();
+                        Trace.record(Trace.Event.WRITE, sc, writing.flush(sc));
+                    }
+                    writingBytes = 0;
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+                writingBytes = 0;
+                lock.lock();
+                try {
+                    writer = false;
+                    writing.clear();
+                } finally {
+                    lock.unlock();
+                }
+                silentlyClose();
+                return;
+            }
+            if (slow) {
+                logger.info("Slow consumer " + sc + " disconnected, its output reached the limit");
+                silentlyClose();
+            }
+        }
+
+        @Override
+        void queueMessage(Packet packet) {
+            boolean slow;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (batcher != null && packet.opCodeGet() == 4) {
+                    if (batcher.add(packet)) {
+                        drainBatches();
+                    }
+                } else {
+                    // the messages batched before keep their place
+                    drainBatches();
+                    enqueue(packet);
+                }
+                slow = overflow;
+            } finally {
+                lock.unlock();
+            }
+            if (slow) {
+                logger.info("Slow consumer " + sc + " disconnected, its output reached the limit");
+                silentlyClose();
+                return;
+            }
+            write();
+        }
+
+        /**
+         * Guarded by lock
+         */
+        private void enqueue(Packet packet) {
+            var frame = Envelope.encode(packet);
+            metrics.packetOut(packet.opCodeGet(), frame.remaining());
+            if (packet instanceof PacketBatch batch) {
+                metrics.batchedMessages.add(batch.count());
+            }
+            if (compression != null) {
+                // compressed with the other frames queued before the writer takes them
+                compression.deflate(frame);
+            } else if (!pending.add(frame)) {
+                overflow = true;
+            }
+        }
+
+        /**
+         * Guarded by lock
+         */
+        private void drainBatches() {
+            if (batcher != null && !batcher.isEmpty()) {
+                batcher.drainTo(this::enqueue);
+            }
+        }
+
+        @Override
+        void send(Packet packet) {
+            queueMessage(packet);
+        }
+
+        @Override
+        void silentlyClose() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                Trace.record(Trace.Event.CLOSE, sc, pending.bytes());
+                pending.clear();
+                if (!writer) {
+                    writing.clear();
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                // wakes up the reader and the writer blocked on the channel
+                sc.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            unregister();
+        }
+
+        @Override
+        void link() {
+            lock.lock();
+            try {
+                isLink = true;
+                if (!pending.spills()) {
+                    pending.spillOver(new SpillFile());
+                }
+                if (LinkBatcher.ENABLED && batcher == null) {
+                    batcher = new LinkBatcher();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void lockOutput() {
+            lock.lock();
+        }
+
+        @Override
+        void unlockOutput() {
+            lock.unlock();
+            write();
+        }
+
+        /**
+         * The frames queued and those the writer is writing, from any thread
+         */
+        @Override
+        QueueDepth queueDepth() {
+            var session = describe();
+            lock.lock();
+            try {
+                return new QueueDepth(session, pending.bytes() + pending.spilled() + writingBytes);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called by the reader while it handles the frame after which the input is compressed
+         */
+        @Override
+        void compress() {
+            lock.lock();
+            try {
+                compression = new LinkCompression(metrics);
+            } finally {
+                lock.unlock();
+            }
+            compressedIn = ByteBuffer.allocate(BUFFER_SIZE).put(bufferIn.flip());
+            bufferIn.clear();
+        }
+
+        @Override
+        void loggedIn() {
+            blockingClients.add(this);
+        }
+
+        @Override
+        void loggedOut() {
+            blockingClients.remove(this);
+        }
+    }
+
+
+    // #################### CONTEXT #################### //
+
+    private class Context extends Session {
+        private final SelectionKey key;
+        private final FrameQueue queue = new FrameQueue(outputBudget);
+        // public messages of a link waiting for the flush phase, null if not a link or batching is off
+        private LinkBatcher batcher;
+        private final Reactor reactor;
+        // bufferIn and packetReader only exist while bytes of a frame are pending
+        private ByteBuffer bufferIn;
+        private PacketReader packetReader;
+        private boolean midFrame = false;
+        private boolean pendingIn = false;
+        private boolean closed = false;
+        // queued output not looked at yet by the flush phase of the reactor
+        private boolean dirty = false;
+        // bytes of the frame being read, consumed by the previous calls to process
+        private long frameBytes;
+        // input of a compressed link as it is read, inflated to bufferIn
+        private ByteBuffer compressedIn;
+
+        private Context(Reactor reactor, SelectionKey key) {
+            super((SocketChannel) key.channel());
+            this.key = key;
+            this.reactor = reactor;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return "[SocketAddress: " + sc.getRemoteAddress().toString() + ", link: " + routes.isLink(this) + "]";
+            } catch (IOException e) {
+                return "";
+            }
+        }
+
+        /**
+         * Process the content of bufferIn, handling every complete frame up to
+         * FRAMES_PER_READ frames. When the budget is spent the context is queued
+         * on its reactor to go on after the other connections had their turn. <br>
+         * The convention is that bufferIn is in write-mode
+         * before the call to process and after the call
+         */
+        private void processIn() {
+            for (int frames = 0; ; frames++) {
+                if (!sc.isOpen() || (!midFrame && bufferIn.position() == 0 && !inflate())) {
+                    return;
+                }
+                if (frames == FRAMES_PER_READ) {
+                    if (!pendingIn) {
+                        pendingIn = true;
+                        reactor.pendingInput.add(this);
+                    }
+                    return;
+                }
+                if (packetReader == null) {
+                    packetReader = new PacketReader();
+                }
+                if (!midFrame && relay(packetReader, bufferIn)) {
+                    continue;
+                }
+                var available = bufferIn.position();
+                Reader.ProcessStatus status = packetReader.process(bufferIn);
+                frameBytes += available - bufferIn.position();
+
+                switch (status) {
+                    case DONE -> {
+                        midFrame = false;
+                        packet = packetReader.get();
+                        Trace.record(Trace.Event.FRAME, sc, packet.opCodeGet());
+                        metrics.packetIn(packet.opCodeGet(), frameBytes);
+                        frameBytes = 0;
+                        handle();
+                    }
+                    case REFILL -> {
+                        // a skipped frame leaves the reader between two frames, with nothing pending
+                        midFrame = packetReader.inFrame() || bufferIn.position() != 0;
+                        if (inflate()) {
+                            continue;
+                        }
+                        if (sc.isOpen()) {
+                            Trace.record(Trace.Event.REFILL, sc, bufferIn.position());
+                        }
+                        return;
+                    }
+
+                    case ERROR -> {
+                        Trace.record(Trace.Event.ERROR, sc, bufferIn.position());
+                        logger.info("Malformed frame, closing " + sc);
+                        silentlyClose();
+                        return;
+                    }
+                }
+                packetReader.reset();
+            }
+        }
+
+        @Override
+        void link() {
+            if (!queue.spills()) {
+                queue.spillOver(new SpillFile());
+            }
+            if (LinkBatcher.ENABLED && batcher == null) {
+                batcher = new LinkBatcher();
+            }
+        }
+
+        /**
+         * Decompress into bufferIn what was received on a compressed link
+         *
+         * @return true if there may be more to process in bufferIn
+         */
+        private boolean inflate() {
+            if (compressedIn == null) {
+                return false;
+            }
+            try {
+                return compression.inflate(compressedIn, bufferIn);
+            } catch (DataFormatException e) {
+                logger.info("Malformed compressed input, closing " + sc);
+                silentlyClose();
+                return false;
+            }
+        }
+
+        @Override
+        QueueDepth queueDepth() {
+            return new QueueDepth(describe(), queue.bytes() + queue.spilled());
+        }
+
+        /**
+         * Called while handling the frame after which the input is compressed
+         */
+        @Override
+        void compress() {
+            compression = new LinkCompression(metrics);
+            compressedIn = ByteBuffer.allocate(BUFFER_SIZE).put(bufferIn.flip());
+            bufferIn.clear();
+        }
+
+        @Override
+        void loggedIn() {
+            reactor.addClient(this);
+        }
+
+        @Override
+        void loggedOut() {
+            reactor.removeClient(this);
+        }
+
+        /**
+         * The actual queueing is done by the reactor owning this context
+         *
+         * @param packet Message
+         */
+        @Override
+        void send(Packet packet) {
+            reactor.execute(() -> queueMessage(packet));
+        }
+
+        /**
+         * Add a message to the outbound queue as a ready frame, it is written by
+         * the flush phase at the end of the iteration of the reactor
+         *
+         * @param packet Message
+         */
+        @Override
+        void queueMessage(Packet packet) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (batcher != null) {
+                if (packet.opCodeGet() == 4) {
+                    if (batcher.add(packet)) {
+                        batcher.drainTo(this::enqueue);
+                    }
+                    markDirty();
+                    return;
+                }
+                // the messages batched before keep their place
+                batcher.drainTo(this::enqueue);
+            }
+            enqueue(packet);
+        }
+
+        private void enqueue(Packet packet) {
+            if (!key.isValid()) {
+                return;
+            }
+            var frame = Envelope.encode(packet);
+            metrics.packetOut(packet.opCodeGet(), frame.remaining());
+            if (packet instanceof PacketBatch batch) {
+                metrics.batchedMessages.add(batch.count());
+            }
+            if (compression != null) {
+                // compressed with the other frames of the iteration, see flush
+                compression.deflate(frame);
+            } else if (!queue.add(frame)) {
+                logger.info("Slow consumer " + sc + " disconnected, its output reached the limit");
+                silentlyClose();
+                return;
+            }
+            markDirty();
+        }
+
+        private void markDirty() {
+            if (!dirty) {
+                dirty = true;
+                reactor.dirty.add(this);
+            }
+        }
+
+        /**
+         * Write what was queued during the iteration. The write is attempted
+         * directly unless the socket was already full, then OP_WRITE takes over
+         * for what is left.
+         */
+        private void flush() {
+            if (batcher != null && !batcher.isEmpty()) {
+                batcher.drainTo(this::enqueue);
+            }
+            dirty = false;
+            if (!key.isValid()) {
+                return;
+            }
+            if (compression != null && compression.hasOutput() && !queue.add(compression.flush())) {
+                logger.info("Slow consumer " + sc + " disconnected, its output reached the limit");
+                silentlyClose();
+                return;
+            }
+            if (DIRECT_WRITE && sc.isConnected() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                try {
+                    Trace.record(Trace.Event.FLUSH, sc, queue.flush(sc));
+                    metrics.queueDepth.record(queue.bytes() + queue.spilled());
+                } catch (IOException e) {
+                    logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+                    silentlyClose();
+                    return;
+                }
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Update the interestOps of the key looking only at values of the boolean
+         * closed, of bufferIn and of the outbound queue. <br>
+         * The convention is that bufferIn is in write-mode before the call to
+         * updateInterestOps and after the call. <br>
+         * It is assumed that process has been called just before updateInterestOps.
+         */
+        private void updateInterestOps() {
+            if (!key.isValid()) {
+                return;
+            }
+            // a link being opened waits for doConnect, its output is kept until then
+            if (sc.isConnectionPending()) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            var ops = 0;
+            var in = compressedIn != null ? compressedIn : bufferIn;
+            if ((in == null || in.hasRemaining()) && !closed) ops |= SelectionKey.OP_READ;
+
+            // output queued during this iteration is left to the flush phase
+            if (!queue.isEmpty() && !dirty) ops |= SelectionKey.OP_WRITE;
+
+            if (ops == 0 && !dirty) silentlyClose();
+            else key.interestOps(ops);
+        }
+
+        @Override
+        void silentlyClose() {
+            if (!sc.isOpen()) {
+                return;
+            }
+            Trace.record(Trace.Event.CLOSE, sc, queue.bytes());
+            try {
+                sc.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            if (bufferIn != null) {
+                reactor.pool.release(bufferIn);
+                bufferIn = null;
+            }
+            queue.clear();
+            unregister();
+        }
+
+        /**
+         * Performs the read action on sc
+         * <p>
+         * The convention is that bufferIn is in write-mode before the call to
+         * doRead and after the call
          *
          * @throws IOException Is thrown if the SocketChannel <b>sc</b> is closed while reading from it
          */
         private void doRead() throws IOException {
-            if (sc.read(bufferIn) == -1) closed = true;
+            if (bufferIn == null) {
+                bufferIn = reactor.pool.borrow();
+            }
+            var read = sc.read(compressedIn != null ? compressedIn : bufferIn);
+            Trace.record(Trace.Event.READ, sc, read);
+            if (read == -1) closed = true;
             if (!closed) {
+                var start = System.nanoTime();
                 processIn();
+                metrics.processingTime.record(System.nanoTime() - start);
             }
+            releaseIfIdle();
             updateInterestOps();
         }
 
         /**
-         * Performs the write action on sc
-         * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * doWrite and after the call
+         * Go on with the frames left in bufferIn by a previous processIn
+         */
+        private void resumeIn() {
+            pendingIn = false;
+            if (!sc.isOpen()) {
+                return;
+            }
+            processIn();
+            releaseIfIdle();
+            updateInterestOps();
+        }
+
+        /**
+         * Give back bufferIn and drop the reader when no frame is being received,
+         * so that an idle connection holds no buffer at all
+         */
+        private void releaseIfIdle() {
+            if (midFrame || pendingIn || bufferIn == null || bufferIn.position() != 0) {
+                return;
+            }
+            reactor.pool.release(bufferIn);
+            bufferIn = null;
+            packetReader = null;
+            packet = null;
+        }
+
+        /**
+         * Performs the write action on sc, flushing as many queued frames as
+         * possible with one gathering write
          *
          * @throws IOException Is thrown if the SocketChannel <b>sc</b> is closed while writing in it
          */
         private void doWrite() throws IOException {
-            bufferOut.flip();
-            sc.write(bufferOut);
-            bufferOut.compact();
-            processOut();
+            Trace.record(Trace.Event.WRITE, sc, queue.flush(sc));
+            metrics.queueDepth.record(queue.bytes() + queue.spilled());
             updateInterestOps();
         }
 
@@ -499,6 +1704,7 @@ public class ServerChatFusion {
                 logger.warning("Bad thing happened");
                 return;
             }
+            Trace.record(Trace.Event.CONNECT, sc, 0);
             updateInterestOps();
         }
     }
@@ -0,0 +1,74 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of the logged clients indexed by login. <br>
+ * Registration, sender validation and lookup are constant-time whatever the
+ * number of clients, and safe from any reactor : registering a login is atomic,
+ * so two connections racing for the same name can't both succeed. <br>
+ * It is the only place where logins are indexed, so that it can be sharded
+ * without touching the server.
+ *
+ * @param <S> session bound to a login
+ */
+final class SessionRegistry<S> {
+
+    private final ConcurrentHashMap<String, S> sessions;
+
+    SessionRegistry() {
+        this(16);
+    }
+
+    /**
+     * @param expected number of sessions sized for, to avoid rehashing while they log in
+     */
+    SessionRegistry(int expected) {
+        sessions = new ConcurrentHashMap<>(expected);
+    }
+
+    /**
+     * @return true if the login was free and is now bound to the session
+     */
+    boolean register(String login, S session) {
+        return sessions.putIfAbsent(login, session) == null;
+    }
+
+    /**
+     * Unbind the login, only if it is still bound to the given session
+     */
+    void unregister(String login, S session) {
+        sessions.remove(login, session);
+    }
+
+    /**
+     * @return the session of the login or null if nobody uses it
+     */
+    S lookup(String login) {
+        return sessions.get(login);
+    }
+
+    boolean isRegistered(String login) {
+        return sessions.containsKey(login);
+    }
+
+    /**
+     * Sender validation : true if the login belongs to the given session
+     */
+    boolean isRegistered(String login, S session) {
+        var registered = sessions.get(login);
+        return registered != null && registered == session;
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return a live view of the logins in use
+     */
+    Set<String> logins() {
+        return sessions.keySet();
+    }
+}
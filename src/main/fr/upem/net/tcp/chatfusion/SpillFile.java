@@ -0,0 +1,169 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Overflow of the outbound queue of a link between servers, kept in a
+ * temporary file mapped in memory. <br>
+ * Frames are appended as they would go on the wire and the file is written
+ * back to the socket in the same order, straight from the mapping, so a stalled
+ * peer costs disk space instead of heap. The file is created on the first
+ * append and deleted by clear. <br>
+ * The segments drained are mapped again for the next appends instead of
+ * truncating the file : a mapping outlives the MappedByteBuffer until it is
+ * collected, and touching it past the end of a truncated file is a SIGBUS.
+ * So the file only grows, up to maxBytes plus two segments. <br>
+ * Like a FrameQueue, a SpillFile belongs to the thread of its connection.
+ */
+final class SpillFile {
+
+    static final int SEGMENT_SIZE = Integer.getInteger("chatfusion.spill.segment", 1 << 20);
+    static final long MAX_BYTES = Long.getLong("chatfusion.spill.max", 1L << 30);
+
+    private final int segmentSize;
+    private final long maxBytes;
+    private final ArrayDeque<MappedByteBuffer> segments = new ArrayDeque<>();
+    // segments already mapped and drained, in write-mode and cleared
+    private final ArrayDeque<MappedByteBuffer> free = new ArrayDeque<>();
+    private FileChannel file;
+    // offset in the file of the next segment to map
+    private long mapped;
+    // segments are in write-mode, read is the offset of the replay in the first one
+    private int read;
+    private long bytes;
+
+    SpillFile() {
+        this(SEGMENT_SIZE, MAX_BYTES);
+    }
+
+    /**
+     * @param segmentSize size of the pieces of the file mapped at once
+     * @param maxBytes    number of bytes the file can hold waiting to be written
+     */
+    SpillFile(int segmentSize, long maxBytes) {
+        if (segmentSize <= 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("segment of " + segmentSize + " bytes, at most " + maxBytes + " bytes");
+        }
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEmpty() {
+        return bytes == 0;
+    }
+
+    /**
+     * @return number of bytes waiting in the file
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return size of the file, the segments mapped so far
+     */
+    long fileSize() {
+        return mapped;
+    }
+
+    /**
+     * @return true if size more bytes can be appended without going past maxBytes
+     */
+    boolean fits(int size) {
+        return bytes + size <= maxBytes;
+    }
+
+    /**
+     * @param frame ByteBuffer in read-mode, it is consumed
+     * @throws IOException if the file can't be created or grown
+     */
+    void append(ByteBuffer frame) throws IOException {
+        bytes += frame.remaining();
+        while (frame.hasRemaining()) {
+            var segment = segments.peekLast();
+            if (segment == null || !segment.hasRemaining()) {
+                segment = map();
+            }
+            var chunk = Math.min(frame.remaining(), segment.remaining());
+            segment.put(segment.position(), frame, frame.position(), chunk);
+            segment.position(segment.position() + chunk);
+            frame.position(frame.position() + chunk);
+        }
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        var reused = free.poll();
+        if (reused != null) {
+            segments.add(reused);
+            return reused;
+        }
+        if (file == null) {
+            var path = Files.createTempFile("chatfusion-link", ".spill");
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        var segment = file.map(FileChannel.MapMode.READ_WRITE, mapped, segmentSize);
+        mapped += segmentSize;
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Write the oldest bytes of the file until the channel doesn't accept more
+     *
+     * @param channel GatheringByteChannel in non-blocking mode
+     * @return number of bytes written
+     * @throws IOException if the channel is closed
+     */
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        long total = 0;
+        while (!segments.isEmpty()) {
+            var segment = segments.peek();
+            var pending = segment.slice(read, segment.position() - read);
+            var written = channel.write(pending);
+            total += written;
+            read += written;
+            bytes -= written;
+            if (pending.hasRemaining()) {
+                break;
+            }
+            if (segment.hasRemaining()) {
+                // the segment being appended to is drained
+                break;
+            }
+            free.add(segments.poll().clear());
+            read = 0;
+        }
+        if (bytes == 0 && !segments.isEmpty()) {
+            // the segment being appended to is drained too, start it over
+            free.add(segments.poll().clear());
+            read = 0;
+        }
+        return total;
+    }
+
+    /**
+     * Forget the bytes waiting and delete the file
+     */
+    void clear() {
+        segments.clear();
+        free.clear();
+        read = 0;
+        mapped = 0;
+        bytes = 0;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            file = null;
+        }
+    }
+}
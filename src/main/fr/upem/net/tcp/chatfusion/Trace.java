@@ -0,0 +1,120 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.io.PrintStream;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Events of the selector loops kept in a lock-free ring buffer, dumped on
+ * demand by the TRACE DUMP command of the server. <br>
+ * Tracing is off by default and record then costs a volatile read. Once it is
+ * on, an event is a few stores in preallocated arrays, the oldest events are
+ * overwritten. An event is only printed if it was not overwritten while it
+ * was being read.
+ */
+final class Trace {
+
+    enum Event {ACCEPT, SELECT, CONNECT, READ, FRAME, REFILL, ERROR, WRITE, FLUSH, CLOSE}
+
+    static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chatfusion.trace.size", 1 << 14)));
+    private static final Event[] EVENTS = Event.values();
+
+    private static volatile boolean enabled;
+    // allocated the first time tracing is turned on, published by the write of enabled
+    private static Ring ring;
+
+    static {
+        if (Boolean.getBoolean("chatfusion.trace")) {
+            enable();
+        }
+    }
+
+    private Trace() {
+    }
+
+    private static final class Ring {
+        private final AtomicLong next = new AtomicLong();
+        // index + 1 of the event held by each slot, 0 while it is written
+        private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+        private final long[] times = new long[CAPACITY];
+        private final long[] threads = new long[CAPACITY];
+        private final int[] events = new int[CAPACITY];
+        private final int[] connections = new int[CAPACITY];
+        private final long[] values = new long[CAPACITY];
+    }
+
+    static synchronized void enable() {
+        if (ring == null) {
+            ring = new Ring();
+        }
+        enabled = true;
+    }
+
+    static void disable() {
+        enabled = false;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param connection object standing for the connection, only its identity hash is kept
+     * @param value      bytes, opcode or count depending on the event
+     */
+    static void record(Event event, Object connection, long value) {
+        if (!enabled) {
+            return;
+        }
+        var ring = Trace.ring;
+        var index = ring.next.getAndIncrement();
+        var slot = (int) index & (CAPACITY - 1);
+        ring.stamps.setOpaque(slot, 0);
+        // keeps the writes of the fields from becoming visible before the stamp is cleared
+        VarHandle.storeStoreFence();
+        ring.times[slot] = System.nanoTime();
+        ring.threads[slot] = Thread.currentThread().getId();
+        ring.events[slot] = event.ordinal();
+        ring.connections[slot] = System.identityHashCode(connection);
+        ring.values[slot] = value;
+        ring.stamps.setRelease(slot, index + 1);
+    }
+
+    /**
+     * Print the events still in the ring, oldest first
+     */
+    static void dump(PrintStream out) {
+        Ring ring;
+        synchronized (Trace.class) {
+            ring = Trace.ring;
+        }
+        if (ring == null) {
+            out.println("Trace is empty, turn it on with TRACE ON");
+            return;
+        }
+        var last = ring.next.get();
+        var first = Math.max(0, last - CAPACITY);
+        var origin = -1L;
+        for (var index = first; index < last; index++) {
+            var slot = (int) index & (CAPACITY - 1);
+            if (ring.stamps.getAcquire(slot) != index + 1) {
+                continue;
+            }
+            var time = ring.times[slot];
+            var thread = ring.threads[slot];
+            var event = ring.events[slot];
+            var connection = ring.connections[slot];
+            var value = ring.values[slot];
+            VarHandle.acquireFence();
+            if (ring.stamps.getOpaque(slot) != index + 1) {
+                continue;
+            }
+            if (origin < 0) {
+                origin = time;
+            }
+            out.printf("%12.3f us  thread %-4d %-8s %08x %d%n", (time - origin) / 1_000.0, thread, EVENTS[event], connection, value);
+        }
+        out.println((last - first) + " events, " + last + " recorded");
+    }
+}
@@ -0,0 +1,127 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncChatClientTest {
+
+    private static final String SERVER = "async";
+    private static InetSocketAddress address;
+    private static Thread server;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        address = new InetSocketAddress("localhost", port);
+        var chat = new ServerChatFusion(port, SERVER, 1);
+        server = new Thread(() -> {
+            try {
+                chat.launch();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        server.start();
+    }
+
+    @AfterAll
+    public static void stopServer() throws InterruptedException {
+        server.interrupt();
+        server.join();
+    }
+
+    private static final ChatListener IGNORE = (server, login, message) -> {
+    };
+
+    @Test
+    public void messagesReachEverySession() throws Exception {
+        var sessions = 100;
+        var received = new CountDownLatch(sessions);
+        try (var client = new AsyncChatClient()) {
+            var logins = new ArrayList<CompletableFuture<AsyncChatClient.Session>>();
+            for (int i = 0; i < sessions; i++) {
+                logins.add(client.login(address, "bot" + i, (server, login, message) -> {
+                    if (login.equals("bot0") && message.equals("hello")) {
+                        received.countDown();
+                    }
+                }));
+            }
+            var first = logins.get(0).get(10, TimeUnit.SECONDS);
+            for (var login : logins) {
+                assertEquals(SERVER, login.get(10, TimeUnit.SECONDS).server());
+            }
+            first.send("hello").get(10, TimeUnit.SECONDS);
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void loginRefused() throws Exception {
+        try (var client = new AsyncChatClient()) {
+            client.login(address, "twice", IGNORE).get(10, TimeUnit.SECONDS);
+            var refused = client.login(address, "twice", IGNORE);
+            var e = assertThrows(CompletionException.class, refused::join);
+            assertInstanceOf(IOException.class, e.getCause());
+        }
+    }
+
+    @Test
+    public void sendAfterCloseFails() throws Exception {
+        try (var client = new AsyncChatClient()) {
+            var session = client.login(address, "closing", IGNORE).get(10, TimeUnit.SECONDS);
+            session.close();
+            assertThrows(CompletionException.class, () -> session.send("lost").join());
+        }
+    }
+
+    @Test
+    public void failingListenerKeepsTheClientRunning() throws Exception {
+        var received = new CountDownLatch(1);
+        try (var client = new AsyncChatClient()) {
+            var failing = client.login(address, "failing", (server, login, message) -> {
+                throw new IllegalStateException("listener bug");
+            }).get(10, TimeUnit.SECONDS);
+            client.login(address, "listening", (server, login, message) -> {
+                if (message.equals("after")) {
+                    received.countDown();
+                }
+            }).get(10, TimeUnit.SECONDS);
+            failing.send("before").get(10, TimeUnit.SECONDS);
+            failing.send("after").get(10, TimeUnit.SECONDS);
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void loginToAnUnresolvedAddressFails() throws Exception {
+        try (var client = new AsyncChatClient()) {
+            var unresolved = client.login(InetSocketAddress.createUnresolved("unknown.invalid", 7777), "lost", IGNORE);
+            assertThrows(CompletionException.class, unresolved::join);
+            client.login(address, "resolved", IGNORE).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void loginAfterCloseFails() {
+        var client = assertDoesNotThrow(AsyncChatClient::new);
+        client.close();
+        var e = assertThrows(CompletionException.class, () -> client.login(address, "late", IGNORE).join());
+        assertInstanceOf(ClosedChannelException.class, e.getCause());
+    }
+}
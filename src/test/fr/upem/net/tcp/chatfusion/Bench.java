@@ -0,0 +1,62 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ * Small harness for the benchmarks of the test sources, run from their main. <br>
+ * Each operation is warmed up, then timed over several rounds on the calling
+ * thread, the allocation per operation is read from the JVM counters.
+ */
+public final class Bench {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // results are summed here so that the JIT can't drop the measured code
+    private static long sink;
+
+    public record Result(String name, double nanosPerOp, double bytesPerOp) {
+        @Override
+        public String toString() {
+            return String.format("%-40s %12.1f ns/op %12.1f B/op", name, nanosPerOp, bytesPerOp);
+        }
+    }
+
+    private Bench() {
+    }
+
+    /**
+     * @param name       printed with the result
+     * @param operations number of calls to op per round
+     * @param op         operation measured, its result is consumed
+     * @return the best round
+     */
+    public static Result run(String name, int operations, LongSupplier op) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            loop(operations, op);
+        }
+        var best = Double.MAX_VALUE;
+        var allocated = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            var bytes = threads.getCurrentThreadAllocatedBytes();
+            var start = System.nanoTime();
+            loop(operations, op);
+            var time = System.nanoTime() - start;
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - bytes);
+            best = Math.min(best, (double) time / operations);
+        }
+        var result = new Result(name, best, (double) allocated / operations);
+        System.out.println(result);
+        return result;
+    }
+
+    private static void loop(int operations, LongSupplier op) {
+        long sum = 0;
+        for (int i = 0; i < operations; i++) {
+            sum += op.getAsLong();
+        }
+        sink += sum;
+    }
+}
@@ -0,0 +1,82 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConsoleRendererTest {
+
+    /**
+     * Terminal whose first write blocks until it is released
+     */
+    private static class SlowTerminal extends OutputStream {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            synchronized (this) {
+                content.write(b, off, len);
+            }
+        }
+
+        private synchronized String content() {
+            return content.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String waitFor(SlowTerminal terminal, String end) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!terminal.content().endsWith(end)) {
+            assertTrue(System.nanoTime() < deadline, terminal.content());
+            Thread.sleep(10);
+        }
+        return terminal.content();
+    }
+
+    @Test
+    public void messagesAreWrittenOnFlush() throws InterruptedException {
+        var terminal = new SlowTerminal();
+        terminal.release.countDown();
+        var renderer = new ConsoleRenderer(new PrintStream(terminal, false, StandardCharsets.UTF_8), 10);
+        renderer.onMessage("server", "bob", "hello");
+        renderer.onMessage("server", "alice", "hi");
+        renderer.flush();
+        assertEquals("bob[server]: hello\nalice[server]: hi\n", waitFor(terminal, "hi\n"));
+    }
+
+    @Test
+    public void floodIsCollapsedWhileTheTerminalIsBusy() throws InterruptedException {
+        var terminal = new SlowTerminal();
+        var renderer = new ConsoleRenderer(new PrintStream(terminal, false, StandardCharsets.UTF_8), 3);
+        renderer.onMessage("server", "bob", "first");
+        renderer.flush();
+        assertTrue(terminal.writing.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            renderer.onMessage("server", "bob", "m" + i);
+        }
+        renderer.flush();
+        terminal.release.countDown();
+        assertEquals("bob[server]: first\nbob[server]: m0\nbob[server]: m1\nbob[server]: m2\n... 7 more messages\n",
+                waitFor(terminal, "more messages\n"));
+    }
+}
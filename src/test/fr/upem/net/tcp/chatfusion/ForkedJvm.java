@@ -0,0 +1,68 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.Assertions;
+import org.opentest4j.AssertionFailedError;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Run the main of a test class in a new JVM, for the features chosen once per
+ * JVM by a system property, such as the envelope, the compression or the
+ * batching of links
+ */
+final class ForkedJvm {
+
+    private static final long TIMEOUT_MINUTES = 5;
+
+    private ForkedJvm() {
+    }
+
+    /**
+     * @param main       class of the test sources, its main exits with 0 on success
+     * @param properties system properties of the new JVM, as -Dname=value
+     * @param args       arguments of main
+     * @return exit code of the new JVM, -1 if it did not exit in time
+     */
+    static int run(Class<?> main, List<String> properties, String... args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(properties);
+        command.add("-cp");
+        command.add(classPath(main, ServerChatFusion.class, Assertions.class, AssertionFailedError.class));
+        command.add(main.getName());
+        command.addAll(Arrays.asList(args));
+        var process = new ProcessBuilder(command).inheritIO().start();
+        if (!process.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            return -1;
+        }
+        return process.exitValue();
+    }
+
+    /**
+     * The launcher of the tests may load them with its own class loader, so
+     * java.class.path is not enough : the class path is where the classes came from
+     */
+    private static String classPath(Class<?>... classes) {
+        return Arrays.stream(classes)
+                .map(ForkedJvm::location)
+                .distinct()
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private static String location(Class<?> type) {
+        try {
+            return Path.of(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameQueueTest {
+
+    private static ByteBuffer frame(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    @Test
+    public void dropOldestTrimsToLowWatermark() {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DROP_OLDEST, 1_000);
+        var queue = new FrameQueue(budget);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.add(frame(20)));
+        }
+        assertTrue(queue.add(frame(20)));
+        assertEquals(40, queue.bytes());
+        assertEquals(40, budget.pending());
+        assertEquals(1, budget.fired(OutputBudget.Policy.DROP_OLDEST));
+        assertEquals(4, budget.droppedFrames(OutputBudget.Policy.DROP_OLDEST));
+    }
+
+    @Test
+    public void dropOldestKeepsFramePartiallyWritten() {
+        var budget = new OutputBudget(100, 0, OutputBudget.Policy.DROP_OLDEST, 1_000);
+        var queue = new FrameQueue(budget);
+        var started = frame(50);
+        queue.add(started);
+        queue.add(frame(50));
+        started.position(10);
+        assertTrue(queue.add(frame(10)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void dropNewUntilLowWatermark() {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DROP_NEW, 1_000);
+        var queue = new FrameQueue(budget);
+        for (int i = 0; i < 5; i++) {
+            queue.add(frame(20));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.add(frame(20)));
+        }
+        assertEquals(100, queue.bytes());
+        queue.clear();
+        assertEquals(0, budget.pending());
+        queue.add(frame(20));
+        assertEquals(20, queue.bytes());
+        assertEquals(1, budget.fired(OutputBudget.Policy.DROP_NEW));
+        assertEquals(3, budget.droppedFrames(OutputBudget.Policy.DROP_NEW));
+        assertEquals(0, budget.droppedFrames(OutputBudget.Policy.DROP_OLDEST));
+    }
+
+    @Test
+    public void disconnectOnServerBudget() {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DISCONNECT, 150);
+        var first = new FrameQueue(budget);
+        var second = new FrameQueue(budget);
+        assertTrue(first.add(frame(100)));
+        assertFalse(second.add(frame(60)));
+        assertEquals(100, budget.pending());
+        assertEquals(1, budget.fired(OutputBudget.Policy.DISCONNECT));
+        assertEquals(1, budget.droppedFrames(OutputBudget.Policy.DISCONNECT));
+    }
+
+    @Test
+    public void unbounded() {
+        var queue = new FrameQueue();
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(queue.add(frame(1_024)));
+        }
+        assertEquals(1_024_000, queue.bytes());
+    }
+
+    @Test
+    public void linkSpillsInOrder() throws IOException {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DISCONNECT, 1_000);
+        var queue = new FrameQueue(budget);
+        // small segments so that frames are split between them
+        queue.spillOver(new SpillFile(4_093, SpillFile.MAX_BYTES));
+        var frames = (int) (FrameQueue.SPILL_THRESHOLD / 1_000) * 3;
+        for (int i = 0; i < frames; i++) {
+            assertTrue(queue.add(ByteBuffer.allocate(1_000).putInt(0, i)));
+        }
+        assertTrue(queue.spilled() > 0);
+        assertTrue(queue.bytes() <= FrameQueue.SPILL_THRESHOLD);
+        var out = new ByteArrayOutputStream();
+        var channel = new Gathering(Channels.newChannel(out), 4_096);
+        while (!queue.isEmpty()) {
+            queue.flush(channel);
+        }
+        var bytes = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(frames * 1_000, bytes.remaining());
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, bytes.getInt(i * 1_000));
+        }
+        assertEquals(0, budget.pending());
+        assertEquals(0, queue.spilled());
+        queue.clear();
+    }
+
+    @Test
+    public void fullSpillFileDropsNewFrames() throws IOException {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DROP_OLDEST, 1L << 20);
+        var queue = new FrameQueue(budget);
+        queue.spillOver(new SpillFile(4_093, 10_000));
+        var frames = (int) (FrameQueue.SPILL_THRESHOLD / 1_000) + 20;
+        for (int i = 0; i < frames; i++) {
+            assertTrue(queue.add(ByteBuffer.allocate(1_000).putInt(0, i)));
+        }
+        assertEquals(10_000, queue.spilled());
+        assertEquals(1, budget.fired(OutputBudget.Policy.DROP_OLDEST));
+        var kept = (int) ((queue.bytes() + queue.spilled()) / 1_000);
+        assertEquals(frames - kept, budget.droppedFrames(OutputBudget.Policy.DROP_OLDEST));
+        var out = new ByteArrayOutputStream();
+        var channel = new Gathering(Channels.newChannel(out), 4_096);
+        while (!queue.isEmpty()) {
+            queue.flush(channel);
+        }
+        var bytes = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(kept * 1_000, bytes.remaining());
+        for (int i = 0; i < kept; i++) {
+            assertEquals(i, bytes.getInt(i * 1_000));
+        }
+        // drained, the file has room again
+        assertTrue(queue.add(frame(1_000)));
+        assertEquals(1, budget.fired(OutputBudget.Policy.DROP_OLDEST));
+        queue.clear();
+    }
+
+    @Test
+    public void fullSpillFileDisconnects() {
+        var budget = new OutputBudget(100, 40, OutputBudget.Policy.DISCONNECT, 1L << 20);
+        var queue = new FrameQueue(budget);
+        queue.spillOver(new SpillFile(4_093, 10_000));
+        var frames = (int) (FrameQueue.SPILL_THRESHOLD / 1_000) + 10;
+        for (int i = 0; i < frames; i++) {
+            assertTrue(queue.add(frame(1_000)));
+        }
+        assertFalse(queue.add(frame(1_000)));
+        assertEquals(1, budget.fired(OutputBudget.Policy.DISCONNECT));
+        queue.clear();
+    }
+
+    @Test
+    public void spillFileReusesItsSegments() throws IOException {
+        var spill = new SpillFile(4_093, SpillFile.MAX_BYTES);
+        var out = new ByteArrayOutputStream();
+        var channel = new Gathering(Channels.newChannel(out), 4_096);
+        try {
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 10; i++) {
+                    spill.append(ByteBuffer.allocate(1_000).putInt(0, round * 10 + i));
+                }
+                while (!spill.isEmpty()) {
+                    spill.writeTo(channel);
+                }
+            }
+            assertTrue(spill.fileSize() <= 4 * 4_093, spill.fileSize() + " bytes");
+        } finally {
+            spill.clear();
+        }
+        var bytes = ByteBuffer.wrap(out.toByteArray());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, bytes.getInt(i * 1_000));
+        }
+    }
+
+    /**
+     * Channel accepting at most max bytes per write, like a socket with a full buffer
+     */
+    private record Gathering(WritableByteChannel channel, int max) implements GatheringByteChannel {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            var chunk = src.slice(src.position(), Math.min(max, src.remaining()));
+            var written = channel.write(chunk);
+            src.position(src.position() + written);
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < max; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
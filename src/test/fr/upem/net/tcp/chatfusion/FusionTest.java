@@ -0,0 +1,203 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.ServerChatFusion.Engine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fusions of servers of both engines while messages go through them. <br>
+ * The envelope, the compression and the batching of links are chosen once per
+ * JVM, the links using all of them are tested in a JVM started with
+ * -Dchatfusion.envelope=true -Dchatfusion.compress=true -Dchatfusion.batch=true.
+ */
+public class FusionTest {
+
+    private final List<Thread> servers = new ArrayList<>();
+
+    private InetSocketAddress start(Engine engine, ServerChatFusion[] started, int index, String name) throws IOException {
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        var server = new ServerChatFusion(port, name, engine, 1);
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        servers.add(thread);
+        started[index] = server;
+        return new InetSocketAddress("localhost", port);
+    }
+
+    @AfterEach
+    public void stopServers() throws InterruptedException {
+        for (var server : servers) {
+            server.interrupt();
+            server.join();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timeout");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Every message sent once the link is up arrives, in order, up to the last one
+     */
+    private static void assertSuffix(ConcurrentLinkedQueue<Integer> received, int last) {
+        var expected = received.peek();
+        for (var message : received) {
+            assertEquals(expected++, message);
+        }
+        assertEquals(last + 1, expected);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    public void fusionWhileMessagesFlow(Engine engine) throws Exception {
+        messagesFlowDuringFusion(engine);
+    }
+
+    /**
+     * Same as fusionWhileMessagesFlow with links in envelopes, compressed and
+     * batched, both ends of the flow must have compressed and batched messages
+     */
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    public void compressedBatchedLinks(Engine engine) throws Exception {
+        var properties = List.of("-Dchatfusion.envelope=true", "-Dchatfusion.compress=true", "-Dchatfusion.batch=true");
+        assertEquals(0, ForkedJvm.run(FusionTest.class, properties, engine.name()));
+    }
+
+    public static void main(String[] args) {
+        var test = new FusionTest();
+        try {
+            assertTrue(LinkCompression.ENABLED && LinkBatcher.ENABLED);
+            var chats = test.messagesFlowDuringFusion(Engine.valueOf(args[0]));
+            for (var chat : List.of(chats[0], chats[2])) {
+                assertTrue(chat.metrics().getCompressedBytes() > 0, "nothing compressed");
+                assertTrue(chat.metrics().getBatchedMessages() > 0, "nothing batched");
+            }
+            test.stopServers();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the servers S1, S2 and S3
+     */
+    private ServerChatFusion[] messagesFlowDuringFusion(Engine engine) throws Exception {
+        var chats = new ServerChatFusion[3];
+        var address1 = start(engine, chats, 0, "S1");
+        var address2 = start(engine, chats, 1, "S2");
+        var address3 = start(engine, chats, 2, "S3");
+        chats[0].fusion(address2);
+        await(() -> chats[1].fusedServers().contains("S1"));
+
+        // messages of S1 received on S3 and of S3 received on S1
+        var received1 = new ConcurrentLinkedQueue<Integer>();
+        var received3 = new ConcurrentLinkedQueue<Integer>();
+        int last;
+        try (var client = new AsyncChatClient()) {
+            var session1 = client.login(address1, "one", (server, login, message) -> {
+                if (server.equals("S3")) {
+                    received3.add(Integer.parseInt(message));
+                }
+            }).get(5, TimeUnit.SECONDS);
+            var session3 = client.login(address3, "three", (server, login, message) -> {
+                if (server.equals("S1")) {
+                    received1.add(Integer.parseInt(message));
+                }
+            }).get(5, TimeUnit.SECONDS);
+            // the fusion of S3 and S2 happens while both sides send, so that the
+            // link is flooded as soon as each server joins. Sending goes on until
+            // 2000 messages were sent once S1 and S3 know each other, however long
+            // the fusion takes on a loaded machine.
+            var sent = 0;
+            var fusedAt = -1;
+            while (fusedAt < 0 || sent < fusedAt + 2_000) {
+                session1.send(Integer.toString(sent));
+                var future = session3.send(Integer.toString(sent));
+                if (sent % 100 == 0) {
+                    // keeps the output of the client bounded
+                    future.get(5, TimeUnit.SECONDS);
+                    if (fusedAt < 0 && sent > 2_000 && chats[0].fusedServers().contains("S3")
+                            && chats[2].fusedServers().contains("S1")) {
+                        fusedAt = sent;
+                    }
+                    assertTrue(sent < 1_000_000, "fusion never completed");
+                }
+                if (sent == 2_000) {
+                    chats[2].fusion(address2);
+                }
+                sent++;
+            }
+            last = sent - 1;
+            await(() -> received1.contains(last) && received3.contains(last));
+        }
+        assertEquals(Set.of("S1", "S2"), Set.copyOf(chats[2].fusedServers()));
+        assertSuffix(received1, last);
+        assertSuffix(received3, last);
+        return chats;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    public void serversOfALostLinkCanFuseAgain(Engine engine) throws Exception {
+        var chats = new ServerChatFusion[4];
+        var address1 = start(engine, chats, 0, "S1");
+        var address2 = start(engine, chats, 1, "S2");
+        start(engine, chats, 2, "S3");
+        chats[0].fusion(address2);
+        await(() -> chats[1].fusedServers().contains("S1"));
+        chats[2].fusion(address2);
+        await(() -> chats[0].fusedServers().contains("S3"));
+
+        // S3 stops, S2 tells S1 that S3 is out of reach
+        servers.get(2).interrupt();
+        servers.get(2).join();
+        await(() -> chats[0].fusedServers().equals(List.of("S2")));
+
+        // a new S3 fuses with S1 instead of S2
+        var address3 = start(engine, chats, 3, "S3");
+        chats[3].fusion(address1);
+        await(() -> chats[1].fusedServers().contains("S3"));
+        var received = new CountDownLatch(1);
+        try (var client = new AsyncChatClient()) {
+            client.login(address2, "two", (server, login, message) -> {
+                if (server.equals("S3")) {
+                    received.countDown();
+                }
+            }).get(5, TimeUnit.SECONDS);
+            var three = client.login(address3, "three", (server, login, message) -> {
+            }).get(5, TimeUnit.SECONDS);
+            three.send("back").get(5, TimeUnit.SECONDS);
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+
+    @Test
+    public void percentilesWithinOneSixteenth() {
+        var histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000, histogram.max());
+        for (var quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            var expected = (long) (quantile * 100_000);
+            var percentile = histogram.percentile(quantile);
+            assertTrue(percentile >= expected && percentile <= expected + expected / 16, quantile + " : " + percentile);
+        }
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        var histogram = new Histogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(12);
+        assertEquals(3, histogram.percentile(0.5));
+        assertEquals(12, histogram.percentile(1));
+        histogram.reset();
+        assertEquals(0, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void largeValues() {
+        var histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        var histogram = new Histogram();
+        var threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (long value = 1; value <= 100_000; value++) {
+                    histogram.record(value);
+                }
+            });
+            threads[t].start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.count());
+        assertEquals(100_000, histogram.max());
+        assertEquals(50_000.5, histogram.mean(), 0.001);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        var histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.percentile(1));
+        assertEquals(0, histogram.max());
+    }
+}
@@ -0,0 +1,46 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.PacketBatch;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LinkBatcherTest {
+
+    @Test
+    public void groupsTheMessagesByServer() {
+        var batcher = new LinkBatcher(1_024);
+        assertTrue(batcher.isEmpty());
+        assertFalse(batcher.add(new PacketString(4, List.of("S1", "a", "one"))));
+        assertFalse(batcher.add(new PacketString(4, List.of("S2", "b", "two"))));
+        assertFalse(batcher.add(new PacketString(4, List.of("S1", "c", "three"))));
+        var batches = new ArrayList<PacketBatch>();
+        batcher.drainTo(batches::add);
+        assertTrue(batcher.isEmpty());
+        assertEquals(2, batches.size());
+        assertEquals(List.of("S1", "a", "one", "c", "three"), batches.get(0).components());
+        assertEquals(List.of("S2", "b", "two"), batches.get(1).components());
+        batcher.drainTo(batches::add);
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void addReportsTheBatchSize() {
+        var batcher = new LinkBatcher(64);
+        var message = new PacketString(4, List.of("S1", "login", "message"));
+        var full = false;
+        var added = 0;
+        while (!full) {
+            full = batcher.add(message);
+            added++;
+        }
+        var batches = new ArrayList<PacketBatch>();
+        batcher.drainTo(batches::add);
+        assertEquals(added, batches.get(0).count());
+        assertTrue(batches.get(0).size() >= 64);
+    }
+}
@@ -0,0 +1,85 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LinkCompressionTest {
+
+    private static final Metrics METRICS = new Metrics(() -> 0, () -> 0);
+
+    private static ByteBuffer frame(String text) {
+        return Envelope.encode(new PacketString(4, List.of("server", "login", text)), true);
+    }
+
+    /**
+     * Inflate the chunk through buffers of the given size
+     */
+    private static ByteBuffer inflate(LinkCompression compression, ByteBuffer chunk, int bufferSize) throws DataFormatException {
+        var result = ByteBuffer.allocate(4_096);
+        var in = ByteBuffer.allocate(bufferSize);
+        var out = ByteBuffer.allocate(bufferSize);
+        boolean progress;
+        do {
+            while (chunk.hasRemaining() && in.hasRemaining()) {
+                in.put(chunk.get());
+            }
+            progress = compression.inflate(in, out);
+            result.put(out.flip());
+            out.clear();
+        } while (chunk.hasRemaining() || progress);
+        return result.flip();
+    }
+
+    @Test
+    public void framesOfAnIterationAreFlushedTogether() throws DataFormatException {
+        var sender = new LinkCompression(METRICS);
+        var receiver = new LinkCompression(METRICS);
+        var first = frame("hello");
+        var second = frame("\u20ACa\u20AC");
+        assertFalse(sender.hasOutput());
+        sender.deflate(first);
+        sender.deflate(second);
+        assertTrue(sender.hasOutput());
+        var chunk = sender.flush();
+        assertFalse(sender.hasOutput());
+        var expected = ByteBuffer.allocate(first.remaining() + second.remaining()).put(first).put(second).flip();
+        assertEquals(expected, inflate(receiver, chunk, 1_024));
+    }
+
+    @Test
+    public void dictionaryCarriesAcrossFlushes() throws DataFormatException {
+        var sender = new LinkCompression(METRICS);
+        var receiver = new LinkCompression(METRICS);
+        var text = "the same message is sent by every client of the chat";
+        sender.deflate(frame(text));
+        var first = sender.flush();
+        sender.deflate(frame(text));
+        var second = sender.flush();
+        assertTrue(second.remaining() < first.remaining() / 2);
+        inflate(receiver, first, 1_024);
+        assertEquals(frame(text), inflate(receiver, second, 1_024));
+    }
+
+    @Test
+    public void smallBuffers() throws DataFormatException {
+        var sender = new LinkCompression(METRICS);
+        var receiver = new LinkCompression(METRICS);
+        var frame = frame("x".repeat(500));
+        sender.deflate(frame);
+        assertEquals(frame, inflate(receiver, sender.flush(), 7));
+    }
+
+    @Test
+    public void errorMalformedInput() {
+        var receiver = new LinkCompression(METRICS);
+        var in = ByteBuffer.allocate(16).putInt(-1).putInt(-1);
+        assertThrows(DataFormatException.class, () -> receiver.inflate(in, ByteBuffer.allocate(16)));
+    }
+}
@@ -0,0 +1,138 @@
+package fr.upem.net.tcp.chatfusion.Reader;
+
+import fr.upem.net.tcp.chatfusion.Bench;
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import fr.upem.net.tcp.chatfusion.Packet.Packet;
+import fr.upem.net.tcp.chatfusion.Packet.PacketFusionInit;
+import fr.upem.net.tcp.chatfusion.Packet.PacketOpcode;
+import fr.upem.net.tcp.chatfusion.Packet.PacketSocketAddress;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Encoding and decoding of a packet of each opcode, so that a regression of a
+ * codec shows up as ns/op and B/op. <br>
+ * Frames are decoded whole, as they arrive one byte at a time in a large
+ * buffer, and through a buffer smaller than the frame which forces the
+ * resumable readers. The readers of public messages and fusion requests are
+ * also measured on their own. <br>
+ * An optional argument only runs the benchmarks whose name contains it.
+ */
+public class CodecBenchmark {
+
+    private static final int OPERATIONS = 200_000;
+
+    private static String filter = "";
+
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            filter = args[0];
+        }
+        var address = new InetSocketAddress("127.0.0.1", 7777);
+        var packets = List.<Packet>of(
+                new PacketString(0, "toto"),
+                new PacketString(2, "ChatFusion"),
+                new PacketOpcode(3),
+                new PacketString(4, List.of("ChatFusion", "toto", "Hello World! How are you today?")),
+                new PacketFusionInit(8, "ChatFusion", address, 3, List.of("Paris", "Lyon", "Marseille")),
+                new PacketFusionInit(9, "ChatFusion", address, 3, List.of("Paris", "Lyon", "Marseille")),
+                new PacketOpcode(10),
+                new PacketSocketAddress(11, address),
+                new PacketSocketAddress(14, address),
+                new PacketString(15, "ChatFusion"));
+
+        for (var packet : packets) {
+            var name = "opcode " + packet.opCodeGet();
+            var frame = packet.generateByteBuffer().flip();
+            var envelope = Envelope.encode(packet, true);
+
+            run(name + " size()", packet::size);
+            run(name + " generateByteBuffer", () -> packet.generateByteBuffer().position());
+            run(name + " encode envelope", () -> Envelope.encode(packet, true).remaining());
+
+            run(name + " decode whole", decodeWhole(new PacketReader(false), frame));
+            run(name + " decode whole envelope", decodeWhole(new PacketReader(true), envelope));
+            run(name + " decode byte by byte", decodeByteByByte(new PacketReader(false), frame));
+            run(name + " decode through 8 bytes", decodeSmallBuffer(new PacketReader(false), frame));
+        }
+
+        var message = new PacketString(4, List.of("ChatFusion", "toto", "Hello World! How are you today?"));
+        run("PublicMessageReader whole", readPayload(PublicMessageReader::new, message));
+        var fusion = new PacketFusionInit(8, "ChatFusion", address, 3, List.of("Paris", "Lyon", "Marseille"));
+        run("FusionInitReader whole", readPayload(() -> new FusionInitReader(8), fusion));
+    }
+
+    private static void run(String name, LongSupplier op) {
+        if (name.contains(filter)) {
+            Bench.run(name, OPERATIONS, op);
+        }
+    }
+
+    private static LongSupplier decodeWhole(PacketReader reader, ByteBuffer frame) {
+        var bb = ByteBuffer.allocate(1_024);
+        return () -> {
+            bb.clear().put(frame.duplicate());
+            reader.process(bb);
+            var packet = reader.get();
+            reader.reset();
+            return packet.opCodeGet();
+        };
+    }
+
+    /**
+     * Each byte arrives on its own, as with a very slow peer, and the reader is
+     * called after each of them
+     */
+    private static LongSupplier decodeByteByByte(PacketReader reader, ByteBuffer frame) {
+        var bb = ByteBuffer.allocate(1_024);
+        return () -> {
+            bb.clear();
+            var bytes = frame.duplicate();
+            while (bytes.hasRemaining()) {
+                bb.put(bytes.get());
+                reader.process(bb);
+            }
+            var packet = reader.get();
+            reader.reset();
+            return packet.opCodeGet();
+        };
+    }
+
+    private static LongSupplier decodeSmallBuffer(PacketReader reader, ByteBuffer frame) {
+        var small = ByteBuffer.allocate(8);
+        return () -> {
+            small.clear();
+            var bytes = frame.duplicate();
+            while (bytes.hasRemaining()) {
+                var chunk = bytes.slice(bytes.position(), Math.min(small.remaining(), bytes.remaining()));
+                bytes.position(bytes.position() + chunk.remaining());
+                small.put(chunk);
+                reader.process(small);
+            }
+            var packet = reader.get();
+            reader.reset();
+            return packet.opCodeGet();
+        };
+    }
+
+    /**
+     * Reader of the payload alone, the opcode being already read by PacketReader
+     */
+    private static <T> LongSupplier readPayload(Supplier<Reader<T>> factory, Packet packet) {
+        var reader = factory.get();
+        var payload = packet.generateByteBuffer().flip().position(Integer.BYTES).slice();
+        var bb = ByteBuffer.allocate(1_024);
+        return () -> {
+            bb.clear().put(payload.duplicate());
+            reader.process(bb);
+            var result = reader.get();
+            reader.reset();
+            return result.hashCode();
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package fr.upem.net.tcp.chatfusion.Reader;
+
+import fr.upem.net.tcp.chatfusion.Bench;
+import fr.upem.net.tcp.chatfusion.Packet.Packet;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decoding of a public message (opcode 4) by the fast path of PacketReader,
+ * compared to the resumable readers the whole frame used to go through. <br>
+ * Every string of the message is read in each operation, so that the lazy
+ * PacketView of the fast path decodes as much as the readers.
+ */
+public class PacketReaderBenchmark {
+
+    private static final int OPERATIONS = 1_000_000;
+
+    public static void main(String[] args) {
+        var frame = new PacketString(4, List.of("ChatFusion", "toto", "Hello World! How are you today?")).generateByteBuffer().flip();
+
+        var heap = ByteBuffer.allocate(1_024);
+        var direct = ByteBuffer.allocateDirect(1_024);
+        var packetReader = new PacketReader();
+        Bench.run("PacketReader fast path (heap)", OPERATIONS, () -> {
+            heap.clear().put(frame.duplicate());
+            packetReader.process(heap);
+            var length = decodedLength(packetReader.get());
+            packetReader.reset();
+            return length;
+        });
+        Bench.run("PacketReader fast path (direct)", OPERATIONS, () -> {
+            direct.clear().put(frame.duplicate());
+            packetReader.process(direct);
+            var length = decodedLength(packetReader.get());
+            packetReader.reset();
+            return length;
+        });
+
+        var intReader = new IntReader();
+        var publicMessageReader = new PublicMessageReader();
+        Bench.run("IntReader + PublicMessageReader", OPERATIONS, () -> {
+            heap.clear().put(frame.duplicate());
+            intReader.process(heap);
+            intReader.reset();
+            publicMessageReader.process(heap);
+            var length = decodedLength(publicMessageReader.get());
+            publicMessageReader.reset();
+            return length;
+        });
+
+        var small = ByteBuffer.allocate(8);
+        Bench.run("PacketReader fragmented by 8 bytes", OPERATIONS / 10, () -> {
+            var bytes = frame.duplicate();
+            while (bytes.hasRemaining()) {
+                var chunk = bytes.slice(bytes.position(), Math.min(small.capacity(), bytes.remaining()));
+                bytes.position(bytes.position() + chunk.remaining());
+                small.put(chunk);
+                packetReader.process(small);
+            }
+            var length = decodedLength(packetReader.get());
+            packetReader.reset();
+            return length;
+        });
+    }
+
+    private static long decodedLength(Packet packet) {
+        long length = 0;
+        for (var component : packet.components()) {
+            length += ((String) component).length();
+        }
+        return length;
+    }
+}
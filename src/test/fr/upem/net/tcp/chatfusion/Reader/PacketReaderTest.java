@@ -0,0 +1,289 @@
+package fr.upem.net.tcp.chatfusion.Reader;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import fr.upem.net.tcp.chatfusion.Packet.PacketBatch;
+import fr.upem.net.tcp.chatfusion.Packet.PacketFusionInit;
+import fr.upem.net.tcp.chatfusion.Packet.PacketString;
+import fr.upem.net.tcp.chatfusion.Packet.PacketView;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PacketReaderTest {
+
+    @Test
+    public void wholeFrame() {
+        var packet = new PacketString(4, List.of("server", "login", "\u20ACa\u20AC"));
+        var bb = ByteBuffer.allocate(1024).put(packet.generateByteBuffer().flip());
+        var reader = new PacketReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(packet.components(), reader.get().components());
+        assertEquals(0, bb.position());
+        assertEquals(bb.capacity(), bb.limit());
+    }
+
+    @Test
+    public void severalFrames() {
+        var first = new PacketString(0, List.of("login"));
+        var second = new PacketString(4, List.of("server", "login", "message"));
+        var bb = ByteBuffer.allocate(1024);
+        bb.put(first.generateByteBuffer().flip()).put(second.generateByteBuffer().flip());
+        var reader = new PacketReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(first, reader.get());
+        reader.reset();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(second.components(), reader.get().components());
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void incompleteFrameIsNotConsumed() {
+        var frame = new PacketString(4, List.of("server", "login", "message")).generateByteBuffer().flip();
+        var bb = ByteBuffer.allocate(1024).put(frame.limit(10));
+        var reader = new PacketReader();
+        assertEquals(Reader.ProcessStatus.REFILL, reader.process(bb));
+        assertEquals(10, bb.position());
+    }
+
+    @Test
+    public void smallBuffer() {
+        var packet = new PacketString(4, List.of("server", "login", "\u20ACa\u20AC"));
+        var bb = packet.generateByteBuffer().flip();
+        var bbSmall = ByteBuffer.allocate(3);
+        var reader = new PacketReader();
+        while (bb.hasRemaining()) {
+            while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bb.get());
+            }
+            if (bb.hasRemaining()) {
+                assertEquals(Reader.ProcessStatus.REFILL, reader.process(bbSmall));
+            } else {
+                assertEquals(Reader.ProcessStatus.DONE, reader.process(bbSmall));
+            }
+        }
+        assertEquals(packet.components(), reader.get().components());
+    }
+
+    @Test
+    public void fusionInit() {
+        var packet = new PacketFusionInit(8, "server", new InetSocketAddress("127.0.0.1", 7777), 2, List.of("a", "b"));
+        var bb = packet.generateByteBuffer().flip();
+        var bbSmall = ByteBuffer.allocate(5);
+        var reader = new PacketReader();
+        var status = Reader.ProcessStatus.REFILL;
+        while (bb.hasRemaining()) {
+            while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bb.get());
+            }
+            status = reader.process(bbSmall);
+        }
+        assertEquals(Reader.ProcessStatus.DONE, status);
+        assertEquals(packet, reader.get());
+    }
+
+    @Test
+    public void fusionInitCapabilities() {
+        var packet = new PacketFusionInit(9, "server", new InetSocketAddress("127.0.0.1", 7777), 2, List.of("a", "b"), 1);
+        var bb = ByteBuffer.allocate(1024).put(Envelope.encode(packet, true));
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(packet, reader.get());
+        assertEquals(0, bb.position());
+
+        var frame = Envelope.encode(packet, true);
+        var bbSmall = ByteBuffer.allocate(5);
+        reader = new PacketReader(true);
+        var status = Reader.ProcessStatus.REFILL;
+        while (frame.hasRemaining()) {
+            while (frame.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(frame.get());
+            }
+            status = reader.process(bbSmall);
+        }
+        assertEquals(Reader.ProcessStatus.DONE, status);
+        assertEquals(packet, reader.get());
+    }
+
+    @Test
+    public void envelope() {
+        var packet = new PacketString(4, List.of("server", "login", "message"));
+        var frame = Envelope.encode(packet, true);
+        assertEquals(frame.limit(), frame.getInt(Integer.BYTES));
+        var bb = ByteBuffer.allocate(1024).put(frame);
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(packet.components(), reader.get().components());
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void envelopeSkipsUnknownOpcode() {
+        var packet = new PacketString(4, List.of("server", "login", "message"));
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(42).putInt(Envelope.HEADER_SIZE + 3).put(new byte[3]);
+        bb.put(Envelope.encode(packet, true));
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(packet.components(), reader.get().components());
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void envelopeSkipsUnknownOpcodeBetweenFrames() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(42).putInt(Envelope.HEADER_SIZE + 3).put(new byte[3]);
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.REFILL, reader.process(bb));
+        assertEquals(0, bb.position());
+        assertFalse(reader.inFrame());
+    }
+
+    @Test
+    public void envelopeSkipsUnknownOpcodeInFrame() {
+        var bb = ByteBuffer.allocate(16);
+        bb.putInt(42).putInt(Envelope.HEADER_SIZE + 20).put(new byte[8]);
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.REFILL, reader.process(bb));
+        assertEquals(0, bb.position());
+        assertTrue(reader.inFrame());
+        bb.put(new byte[12]);
+        assertEquals(Reader.ProcessStatus.REFILL, reader.process(bb));
+        assertFalse(reader.inFrame());
+    }
+
+    @Test
+    public void envelopeSmallBuffer() {
+        var packet = new PacketString(4, List.of("server", "login", "message"));
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(42).putInt(Envelope.HEADER_SIZE + 20).put(new byte[20]);
+        bb.put(Envelope.encode(packet, true)).flip();
+        var bbSmall = ByteBuffer.allocate(6);
+        var reader = new PacketReader(true);
+        var status = Reader.ProcessStatus.REFILL;
+        while (bb.hasRemaining()) {
+            while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bb.get());
+            }
+            status = reader.process(bbSmall);
+        }
+        assertEquals(Reader.ProcessStatus.DONE, status);
+        assertEquals(packet.components(), reader.get().components());
+    }
+
+    @Test
+    public void errorEnvelopeSize() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(4).putInt(Envelope.HEADER_SIZE + 2).putInt(0);
+        var reader = new PacketReader(true);
+        assertEquals(Reader.ProcessStatus.ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void errorEnvelopeSizeSmallBuffer() {
+        // the payload is a valid string but the size claims 4 more bytes
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(2).putInt(Envelope.HEADER_SIZE + 4 + 5 + 4).putInt(5).put("login".getBytes(StandardCharsets.UTF_8)).putInt(0).flip();
+        var bbSmall = ByteBuffer.allocate(6);
+        var reader = new PacketReader(true);
+        var status = Reader.ProcessStatus.REFILL;
+        while (bb.hasRemaining() && status == Reader.ProcessStatus.REFILL) {
+            while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bb.get());
+            }
+            status = reader.process(bbSmall);
+        }
+        assertEquals(Reader.ProcessStatus.ERROR, status);
+    }
+
+    @Test
+    public void relay() {
+        var local = "local".getBytes(StandardCharsets.UTF_8);
+        var forLocal = new PacketString(4, List.of("local", "login", "message")).generateByteBuffer().flip();
+        var forOther = new PacketString(4, List.of("other", "login", "message")).generateByteBuffer().flip();
+        var reader = new PacketReader(false);
+        var bb = ByteBuffer.allocate(1024).put(forLocal);
+        assertNull(reader.relay(bb, local));
+        bb.clear().put(forOther.limit(forOther.limit() - 1));
+        assertNull(reader.relay(bb, local));
+        bb.clear().put(forOther.limit(forOther.capacity()).rewind());
+        var frame = reader.relay(bb, local);
+        assertEquals(forOther.rewind(), frame.generateByteBuffer().flip());
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void viewDecodesLazily() {
+        var packet = new PacketString(4, List.of("server", "login", "\u20ACa\u20AC"));
+        var bb = ByteBuffer.allocate(1024).put(packet.generateByteBuffer().flip());
+        var reader = new PacketReader(false);
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        var view = reader.get();
+        assertInstanceOf(PacketView.class, view);
+        assertEquals(4, view.opCodeGet());
+        assertEquals(packet.size(), view.size());
+        assertEquals("login", view.components().get(1));
+        assertEquals(packet.generateByteBuffer().flip(), view.generateByteBuffer().flip());
+    }
+
+    private static PacketBatch batch(boolean envelope) {
+        var builder = new PacketBatch.Builder("server", envelope);
+        builder.add(new PacketString(4, List.of("server", "alice", "hello")));
+        builder.add(new PacketString(4, List.of("server", "bob", "\u20ACa\u20AC")));
+        return builder.build();
+    }
+
+    @Test
+    public void batchWholeFrame() {
+        for (var envelope : List.of(false, true)) {
+            var batch = batch(envelope);
+            var bb = ByteBuffer.allocate(1024).put(batch.generateByteBuffer().flip());
+            var reader = new PacketReader(envelope);
+            assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+            var read = assertInstanceOf(PacketBatch.class, reader.get());
+            assertEquals(List.of("server", "alice", "hello", "bob", "\u20ACa\u20AC"), read.components());
+            var message = new PacketString(4, List.of("server", "bob", "\u20ACa\u20AC"));
+            assertEquals(Envelope.encode(message, envelope), read.message(1).generateByteBuffer().flip());
+            assertEquals(0, bb.position());
+        }
+    }
+
+    @Test
+    public void batchSmallBuffer() {
+        for (var envelope : List.of(false, true)) {
+            var batch = batch(envelope);
+            var bb = batch.generateByteBuffer().flip();
+            var bbSmall = ByteBuffer.allocate(7);
+            var reader = new PacketReader(envelope);
+            var status = Reader.ProcessStatus.REFILL;
+            while (bb.hasRemaining()) {
+                while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                    bbSmall.put(bb.get());
+                }
+                status = reader.process(bbSmall);
+            }
+            assertEquals(Reader.ProcessStatus.DONE, status);
+            assertEquals(batch.generateByteBuffer().flip(), reader.get().generateByteBuffer().flip());
+        }
+    }
+
+    @Test
+    public void errorBatchCount() {
+        var bb = ByteBuffer.allocate(1024).putInt(PacketBatch.OPCODE);
+        bb.putInt(1).put((byte) 's').putInt(-1);
+        var reader = new PacketReader(false);
+        assertEquals(Reader.ProcessStatus.ERROR, reader.process(bb));
+    }
+
+    @Test
+    public void errorUnknownOpcode() {
+        var bb = ByteBuffer.allocate(1024).putInt(-1);
+        var reader = new PacketReader(false);
+        assertEquals(Reader.ProcessStatus.ERROR, reader.process(bb));
+    }
+}
@@ -0,0 +1,70 @@
+package fr.upem.net.tcp.chatfusion;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoutingTableTest {
+
+    @Test
+    public void joinAddsTheGroupBehindTheLink() {
+        var routes = new RoutingTable<String>();
+        assertEquals(List.of(), routes.join("S1", "link2", List.of("S2", "S3")));
+        assertEquals(Set.of("S2", "S3"), Set.copyOf(routes.join("S1", "link4", List.of("S4"))));
+        assertEquals("link2", routes.nextHop("S3"));
+        assertEquals("link4", routes.nextHop("S4"));
+        assertNull(routes.nextHop("S5"));
+        assertTrue(routes.isLink("link2"));
+        assertEquals(Set.of("link2", "link4"), routes.links());
+    }
+
+    @Test
+    public void joinRefusesAServerInBothGroups() {
+        var routes = new RoutingTable<String>();
+        routes.join("S1", "link2", List.of("S2", "S3"));
+        assertNull(routes.join("S1", "link4", List.of("S4", "S3")));
+        assertNull(routes.join("S1", "link4", List.of("S4", "S1")));
+        assertFalse(routes.isLink("link4"));
+        assertNull(routes.nextHop("S4"));
+    }
+
+    @Test
+    public void announcesOnlyComeFromLinks() {
+        var routes = new RoutingTable<String>();
+        routes.join("S1", "link2", List.of("S2"));
+        assertTrue(routes.add("S3", "link2"));
+        assertFalse(routes.add("S3", "link2"));
+        assertFalse(routes.add("S4", "client"));
+        assertEquals("link2", routes.nextHop("S3"));
+        assertNull(routes.nextHop("S4"));
+    }
+
+    @Test
+    public void removeForgetsTheServersBehindTheLink() {
+        var routes = new RoutingTable<String>();
+        routes.join("S1", "link2", List.of("S2", "S3"));
+        routes.join("S1", "link4", List.of("S4"));
+        assertEquals(Set.of("S2", "S3"), Set.copyOf(routes.remove("link2")));
+        assertEquals(List.of("S4"), routes.servers());
+        assertEquals(List.of(), routes.remove("link2"));
+        assertFalse(routes.isLink("link2"));
+    }
+
+    @Test
+    public void withdrawOnlyThroughTheRouteOfTheServer() {
+        var routes = new RoutingTable<String>();
+        routes.join("S1", "link2", List.of("S2", "S3"));
+        routes.join("S1", "link4", List.of("S4"));
+        assertFalse(routes.remove("S3", "link4"));
+        assertEquals("link2", routes.nextHop("S3"));
+        assertTrue(routes.remove("S3", "link2"));
+        assertNull(routes.nextHop("S3"));
+        assertFalse(routes.remove("S3", "link2"));
+        // the server can come back through another link
+        assertTrue(routes.add("S3", "link4"));
+        assertEquals("link4", routes.nextHop("S3"));
+    }
+}
@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Packet.Envelope;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Connections of the REACTOR engine with the envelope framing. The framing is
+ * chosen once per JVM, so the checks run in a JVM started with
+ * -Dchatfusion.envelope=true.
+ */
+public class ServerChatFusionEnvelopeTest {
+
+    @Test
+    public void skippedFrameLeavesTheConnectionIdle() throws Exception {
+        assertEquals(0, ForkedJvm.run(ServerChatFusionEnvelopeTest.class, List.of("-Dchatfusion.envelope=true")));
+    }
+
+    public static void main(String[] args) {
+        try {
+            skippedFrameLeavesTheConnectionIdle(freePort());
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A frame of an unknown opcode right after LOGIN is skipped once LOGIN is
+     * handled, then the connection is idle and gives its buffer back to the pool
+     */
+    private static void skippedFrameLeavesTheConnectionIdle(int port) throws Exception {
+        assertTrue(Envelope.ENABLED);
+        var server = new ServerChatFusion(port, "envelope", 1);
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        try (var sc = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            var login = StandardCharsets.UTF_8.encode("login");
+            var frames = ByteBuffer.allocate(1_024);
+            frames.putInt(0).putInt(Envelope.HEADER_SIZE + Integer.BYTES + login.remaining())
+                    .putInt(login.remaining()).put(login);
+            frames.putInt(42).putInt(Envelope.HEADER_SIZE + 3).put(new byte[3]);
+            frames.flip();
+            while (frames.hasRemaining()) {
+                sc.write(frames);
+            }
+            var header = ByteBuffer.allocate(Envelope.HEADER_SIZE);
+            readFully(sc, header);
+            assertEquals(2, header.flip().getInt());
+            readFully(sc, ByteBuffer.allocate(header.getInt() - Envelope.HEADER_SIZE));
+
+            var pool = server.bufferPools().get(0);
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.inUse() != 0) {
+                assertTrue(System.nanoTime() < deadline, "the idle connection holds a buffer: " + pool);
+                Thread.sleep(10);
+            }
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static void readFully(SocketChannel sc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            assertNotEquals(-1, sc.read(bb));
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
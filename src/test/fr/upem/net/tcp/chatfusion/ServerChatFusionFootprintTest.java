@@ -0,0 +1,203 @@
+package fr.upem.net.tcp.chatfusion;
+
+import fr.upem.net.tcp.chatfusion.Reader.PacketReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerChatFusionFootprintTest {
+
+    private static final int CONNECTIONS = 500;
+    // size of the input buffers of the server
+    private static final int BUFFER_SIZE = 1_024;
+    // an idle connection costs less than a connection holding a reader and a buffer by this factor
+    private static final int MIN_RATIO = 4;
+
+    // server of the measure in progress, null for the bare ones
+    private ServerChatFusion running;
+
+    /**
+     * Heap and direct memory cost of idle logged clients, minus the cost of the
+     * same number of sockets accepted by a bare ServerSocketChannel, so that
+     * only what the server keeps per connection is measured. <br>
+     * It is compared with a bare server keeping for each socket what every
+     * connection held before they gave them back when idle : a PacketReader
+     * and an input buffer. Both figures move with the JVM and the GC, their
+     * ratio much less. <br>
+     * A first client logs in before the measure, so that the first slab of the
+     * buffer pool, allocated once for all the connections, is not counted.
+     */
+    @Test
+    public void idleConnectionFootprint() throws Exception {
+        // the server is chatty on the console, keep it quiet while measuring
+        var out = System.out;
+        var logger = Logger.getLogger(ServerChatFusion.class.getName());
+        var level = logger.getLevel();
+        long bare;
+        long held;
+        long chat;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            logger.setLevel(Level.WARNING);
+            // the first connections of the JVM pay for caches and classes of the JDK, not measured
+            footprint(port -> bareServer(port, () -> null));
+            bare = footprint(port -> bareServer(port, () -> null));
+            held = footprint(port -> bareServer(port, () -> List.of(new PacketReader(), ByteBuffer.allocate(BUFFER_SIZE))));
+            chat = footprint(this::chatServer);
+        } finally {
+            System.setOut(out);
+            logger.setLevel(level);
+        }
+        long perConnection = (chat - bare) / CONNECTIONS;
+        long heldPerConnection = (held - bare) / CONNECTIONS;
+        System.out.println("Memory per idle connection: " + perConnection + " bytes, "
+                + heldPerConnection + " bytes with a reader and a buffer");
+        assertTrue(perConnection * MIN_RATIO < heldPerConnection,
+                perConnection + " bytes per idle connection against " + heldPerConnection);
+    }
+
+    private interface Server {
+        Thread start(int port) throws Exception;
+    }
+
+    private long footprint(Server server) throws Exception {
+        var port = freePort();
+        var clients = new ArrayList<SocketChannel>(CONNECTIONS + 1);
+        var thread = server.start(port);
+        try {
+            clients.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+            login(clients.get(0), "warmup");
+            long before = usedMemory();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                clients.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+            }
+            for (int i = 1; i < clients.size(); i++) {
+                login(clients.get(i), "user" + i);
+            }
+            long used = usedMemory() - before;
+            if (running != null) {
+                for (var pool : running.bufferPools()) {
+                    assertEquals(0, pool.inUse(), "idle connections hold buffers: " + pool);
+                }
+            }
+            return used;
+        } finally {
+            running = null;
+            for (var client : clients) {
+                client.close();
+            }
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private Thread chatServer(int port) throws IOException {
+        var server = new ServerChatFusion(port, "footprint", 1);
+        running = server;
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Accept loop answering LOGIN_ACCEPTED to anything
+     *
+     * @param state what is kept along with each socket
+     */
+    private Thread bareServer(int port, Supplier<Object> state) throws IOException {
+        var ssc = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        var thread = new Thread(() -> {
+            var accepted = new ArrayList<SocketChannel>();
+            var kept = new ArrayList<>();
+            try (ssc) {
+                while (!Thread.interrupted()) {
+                    accepted.add(ssc.accept());
+                    kept.add(state.get());
+                    accepted.get(accepted.size() - 1).write(ByteBuffer.allocate(Integer.BYTES).putInt(3).flip());
+                }
+            } catch (IOException e) {
+                // interrupted while accepting
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Send LOGIN and wait for the answer, so the server has fully handled the connection
+     */
+    private static void login(SocketChannel sc, String login) throws IOException {
+        var bytes = StandardCharsets.UTF_8.encode(login);
+        var bb = ByteBuffer.allocate(Integer.BYTES * 2 + bytes.remaining());
+        bb.putInt(0).putInt(bytes.remaining()).put(bytes).flip();
+        while (bb.hasRemaining()) {
+            sc.write(bb);
+        }
+        var opCode = ByteBuffer.allocate(Integer.BYTES);
+        while (opCode.hasRemaining()) {
+            assertNotEquals(-1, sc.read(opCode));
+        }
+        var answer = opCode.flip().getInt();
+        assertTrue(answer == 2 || answer == 3);
+        if (answer == 2) {
+            var size = ByteBuffer.allocate(Integer.BYTES);
+            while (size.hasRemaining()) {
+                sc.read(size);
+            }
+            var name = ByteBuffer.allocate(size.flip().getInt());
+            while (name.hasRemaining()) {
+                sc.read(name);
+            }
+        }
+    }
+
+    /**
+     * @return bytes left by the last collection in the heap, plus the bytes
+     * used by the direct buffers, where the pools slice their buffers
+     */
+    private static long usedMemory() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        var heap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null)
+                .mapToLong(pool -> pool.getCollectionUsage().getUsed())
+                .sum();
+        var direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+        return heap + direct;
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package fr.upem.net.tcp.chatfusion;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Footprint and lookup cost of the session registry with a million logged
+ * clients, the lookups are the ones done for each LOGIN and public message
+ */
+public class SessionRegistryBenchmark {
+
+    private static final int SESSIONS = 1_000_000;
+    private static final int OPERATIONS = 10_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        var logins = new String[SESSIONS];
+        var sessions = new Object[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            logins[i] = "user" + i;
+            sessions[i] = new Object();
+        }
+
+        var before = usedHeap();
+        var registry = new SessionRegistry<Object>();
+        for (int i = 0; i < SESSIONS; i++) {
+            registry.register(logins[i], sessions[i]);
+        }
+        var footprint = usedHeap() - before;
+        System.out.printf("%-40s %12d sessions %9.1f B/session%n", "SessionRegistry footprint", registry.size(), (double) footprint / SESSIONS);
+
+        // lookups by an equal but distinct String, as decoded from a frame, so equals compares the characters,
+        // the copies are built here to keep the allocation out of the timed loop, their hash is cached after the warmup
+        var senders = new int[1 << 16];
+        var decoded = new String[senders.length];
+        for (int i = 0; i < decoded.length; i++) {
+            senders[i] = (int) ((i * 2_654_435_761L) % SESSIONS);
+            decoded[i] = new String(logins[senders[i]]);
+        }
+        var mask = decoded.length - 1;
+        var counter = new int[1];
+        Bench.run("SessionRegistry lookup", OPERATIONS, () -> registry.lookup(decoded[counter[0]++ & mask]) == null ? 0 : 1);
+        Bench.run("SessionRegistry isRegistered(sender)", OPERATIONS, () -> {
+            var i = counter[0]++ & mask;
+            return registry.isRegistered(decoded[i], sessions[senders[i]]) ? 1 : 0;
+        });
+        Bench.run("SessionRegistry login refused", OPERATIONS, () -> {
+            var i = counter[0]++ % SESSIONS;
+            return registry.register(logins[i], sessions[i]) ? 1 : 0;
+        });
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}